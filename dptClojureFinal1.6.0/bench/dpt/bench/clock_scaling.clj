@@ -0,0 +1,39 @@
+; dpt1010f15
+(ns dpt.bench.clock-scaling
+  "Transaction throughput from one to twice the number of processors threads,
+  the clock is selected with -Dstm.clock=counter|gv4 when running bench-dpt"
+  (:use clojure.dpt dpt.bench.helper))
+
+(def ^:private transactions 100000)
+(def ^:private ref-count 16)
+
+(defn- thread-counts []
+  (let [cpus (.availableProcessors (Runtime/getRuntime))]
+    (distinct (concat (take-while #(<= % (* 2 cpus)) (iterate #(* 2 %) 1))
+                      [(* 2 cpus)]))))
+
+(defn- throughput
+  "Returns the transactions per second of threads running transactions, every
+  write-every transaction alters a ref, the others only deref refs"
+  [threads write-every]
+  (let [refs (vec (repeatedly ref-count #(ref 0)))
+        per-thread (quot transactions threads)
+        elapsed (run-threads threads
+                  (fn [t]
+                    (dotimes [i per-thread]
+                      (let [a (refs (mod (+ i t) ref-count))
+                            b (refs (mod (+ i t 7) ref-count))]
+                        (if (and write-every (zero? (mod i write-every)))
+                          (dosync (alter a inc))
+                          (dosync (+ @a @b)))))))]
+    (/ (* per-thread threads 1e9) elapsed)))
+
+(defn run []
+  (let [clock (System/getProperty "clojure.stm.clock" "counter")]
+    ; Warmup
+    (throughput 1 16)
+    (report (str "Clock scaling (" clock ") in transactions per second")
+            ["threads" "read-only" "1/16 writes"]
+            (doall
+              (for [threads (thread-counts)]
+                [threads (throughput threads nil) (throughput threads 16)])))))
@@ -0,0 +1,36 @@
+; dpt1010f15
+(ns dpt.bench.contention
+  "Throughput and worst case latency of transactions updating a few hot refs
+  for each built in contention manager"
+  (:use clojure.dpt dpt.bench.helper))
+
+(def ^:private threads 8)
+(def ^:private transactions 2000)
+(def ^:private hot-refs 2)
+
+(defn- hot-workload
+  "Returns the mean and max transaction time in microseconds for threads each
+  running transactions touching all hot refs in a random order"
+  [manager]
+  (let [refs (vec (repeatedly hot-refs #(ref 0)))
+        worst (atom 0)
+        total (run-threads threads
+                (fn [_]
+                  (dotimes [_ transactions]
+                    (let [start (System/nanoTime)]
+                      (dosync-with {:contention-manager manager}
+                        (doseq [r (shuffle refs)]
+                          (alter r inc)))
+                      (let [elapsed (- (System/nanoTime) start)]
+                        (swap! worst max elapsed))))))]
+    [(/ total 1000.0 transactions) (/ @worst 1000.0)]))
+
+(defn run []
+  (report (str "Hot ref contention with " threads " threads")
+          ["manager" "us/tx (wall)" "max us/tx"]
+          (doall
+            (for [type [:barge :backoff :karma :timestamp]]
+              (let [manager (contention-manager type)]
+                ; Warmup
+                (hot-workload manager)
+                (into [type] (hot-workload manager)))))))
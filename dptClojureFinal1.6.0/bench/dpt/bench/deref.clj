@@ -0,0 +1,49 @@
+; dpt1010f15
+(ns dpt.bench.deref
+  "Throughput of deref heavy transactions on a few popular refs, with a writer
+  committing to the refs now and then"
+  (:use clojure.dpt dpt.bench.helper))
+
+(def ^:private transactions 200000)
+(def ^:private ref-count 8)
+(def ^:private derefs 32)
+
+(defn- thread-counts []
+  (let [cpus (.availableProcessors (Runtime/getRuntime))]
+    (distinct (concat (take-while #(<= % (* 2 cpus)) (iterate #(* 2 %) 1))
+                      [(* 2 cpus)]))))
+
+(defn- throughput
+  "Returns the transactions per second of threads running transactions which
+  deref the popular refs derefs times, thread 0 alters a ref every write-every
+  transactions"
+  [threads write-every]
+  (let [refs (vec (repeatedly ref-count #(ref 0)))
+        per-thread (quot transactions threads)
+        elapsed (run-threads threads
+                  (fn [t]
+                    (dotimes [i per-thread]
+                      (if (and write-every (zero? t) (zero? (mod i write-every)))
+                        (dosync (alter (refs (mod i ref-count)) inc))
+                        (dosync
+                          (loop [k 0 sum 0]
+                            (if (< k derefs)
+                              (recur (inc k) (+ sum @(refs (mod (+ k t) ref-count))))
+                              sum)))))))]
+    (/ (* per-thread threads 1e9) elapsed)))
+
+(defn- deref-ns
+  "Returns the mean time in nanoseconds of a deref outside a transaction"
+  []
+  (let [r (ref 0)]
+    (measure-ns 1000000 10000000 #(deref r))))
+
+(defn run []
+  ; Warmup
+  (throughput 1 64)
+  (report "Deref heavy transactions per second"
+          ["threads" "read-only" "1/64 writes"]
+          (doall
+            (for [threads (thread-counts)]
+              [threads (throughput threads nil) (throughput threads 64)])))
+  (report "Deref outside a transaction" ["ns"] [[(deref-ns)]]))
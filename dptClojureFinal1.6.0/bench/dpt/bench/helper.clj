@@ -0,0 +1,39 @@
+; dpt1010f15
+(ns dpt.bench.helper
+  "Small timing helpers shared by the dpt benchmarks")
+
+(defn measure-ns
+  "Runs f warmup times, then returns the mean time in nanoseconds of running f
+  iterations times"
+  [warmup iterations f]
+  (dotimes [_ warmup] (f))
+  (let [start (System/nanoTime)]
+    (dotimes [_ iterations] (f))
+    (/ (double (- (System/nanoTime) start)) iterations)))
+
+(defn run-threads
+  "Runs f in n threads at the same time and returns the total time in
+  nanoseconds until all threads are done, f is given the thread index"
+  [n f]
+  (let [start-latch (java.util.concurrent.CountDownLatch. 1)
+        done-latch (java.util.concurrent.CountDownLatch. n)
+        threads (doall (for [i (range n)]
+                         (doto (Thread. #(try
+                                           (.await start-latch)
+                                           (f i)
+                                           (finally
+                                             (.countDown done-latch))))
+                           (.start))))
+        start (System/nanoTime)]
+    (.countDown start-latch)
+    (.await done-latch)
+    (- (System/nanoTime) start)))
+
+(defn report
+  "Prints a benchmark result table with a title, the columns and a row per result"
+  [title columns rows]
+  (println)
+  (println title)
+  (println (apply str (interpose "\t" columns)))
+  (doseq [row rows]
+    (println (apply str (interpose "\t" (map #(if (float? %) (format "%.1f" %) %) row))))))
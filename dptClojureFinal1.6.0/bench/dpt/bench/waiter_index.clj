@@ -0,0 +1,41 @@
+; dpt1010f15
+(ns dpt.bench.waiter-index
+  "Commit latency of a writing transaction while a number of unrelated
+  transactions are blocked by retry"
+  (:use clojure.dpt dpt.bench.helper))
+
+(def ^:private waiter-counts [0 100 500 1000 2000])
+(def ^:private iterations 20000)
+
+(defn- park-waiters
+  "Starts n threads each blocked by retry on its own ref, returns the refs once
+  every thread is waiting"
+  [n]
+  (let [refs (vec (repeatedly n #(ref 0)))
+        threads (doall (for [r refs]
+                         (doto (Thread. #(dosync
+                                           (when (zero? @r)
+                                             (retry r))))
+                           (.setDaemon true)
+                           (.start))))]
+    ; A thread only enters the WAITING state when blocked by retry
+    (while (not-every? #(= Thread$State/WAITING (.getState ^Thread %)) threads)
+      (Thread/sleep 10))
+    [refs threads]))
+
+(defn- release-waiters [[refs threads]]
+  (doseq [r refs]
+    (dosync (alter r inc)))
+  (doseq [^Thread t threads]
+    (.join t)))
+
+(defn run []
+  (let [hot-ref (ref 0)]
+    (report "Commit latency with blocked transactions on unrelated refs"
+            ["waiters" "ns/commit"]
+            (doall
+              (for [n waiter-counts]
+                (let [waiters (park-waiters n)
+                      latency (measure-ns iterations iterations #(dosync (alter hot-ref inc)))]
+                  (release-waiters waiters)
+                  [n latency]))))))
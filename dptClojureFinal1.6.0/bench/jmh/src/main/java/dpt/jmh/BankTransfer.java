@@ -0,0 +1,44 @@
+// dpt1010f15
+package dpt.jmh;
+
+import clojure.lang.IFn;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Transfers between random accounts, the number of accounts sets the contention
+ */
+@State(Scope.Benchmark)
+public class BankTransfer {
+    private static final IFn MAKE_ACCOUNTS = Workloads.fn("make-accounts");
+    private static final IFn TRANSFER = Workloads.fn("transfer");
+    private static final IFn TOTAL = Workloads.fn("total");
+
+    @Param({"2", "16", "1024"})
+    public int accounts;
+
+    private Object state;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.state = MAKE_ACCOUNTS.invoke(this.accounts);
+    }
+
+    @TearDown(Level.Trial)
+    public void check() {
+        long total = ((Number) TOTAL.invoke(this.state)).longValue();
+        if (total != 1000L * this.accounts) {
+            throw new IllegalStateException("Transfers changed the total to " + total);
+        }
+    }
+
+    @Benchmark
+    public Object transfer() {
+        return TRANSFER.invoke(this.state);
+    }
+}
@@ -0,0 +1,54 @@
+// dpt1010f15
+package dpt.jmh;
+
+import clojure.lang.IFn;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Increments of shared counters by commute, commute-lazy and counter refs, with alter as the baseline
+ */
+@State(Scope.Benchmark)
+public class CommuteCounter {
+    private static final IFn MAKE_ACCOUNTS = Workloads.fn("make-accounts");
+    private static final IFn COUNT_COMMUTE = Workloads.fn("count-commute");
+    private static final IFn COUNT_COMMUTE_LAZY = Workloads.fn("count-commute-lazy");
+    private static final IFn COUNT_ALTER = Workloads.fn("count-alter");
+    private static final IFn MAKE_COUNTERS = Workloads.fn("make-counters");
+
+    @Param({"1", "16"})
+    public int counters;
+
+    private Object state;
+    private Object counterRefs;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.state = MAKE_ACCOUNTS.invoke(this.counters);
+        this.counterRefs = MAKE_COUNTERS.invoke(this.counters);
+    }
+
+    @Benchmark
+    public Object commute() {
+        return COUNT_COMMUTE.invoke(this.state);
+    }
+
+    @Benchmark
+    public Object commuteLazy() {
+        return COUNT_COMMUTE_LAZY.invoke(this.state);
+    }
+
+    @Benchmark
+    public Object counterRef() {
+        return COUNT_COMMUTE.invoke(this.counterRefs);
+    }
+
+    @Benchmark
+    public Object alter() {
+        return COUNT_ALTER.invoke(this.state);
+    }
+}
@@ -0,0 +1,37 @@
+// dpt1010f15
+package dpt.jmh;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks once for each thread count, the thread counts are given by -Ddpt.threads=1,2,4,8
+ *
+ * All other arguments are passed to JMH. If JMH is given -t the thread counts are not used, and a result file
+ * given with -rff gets the thread count added to its name
+ */
+public final class Main {
+    private Main() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        if (cmd.shouldHelp() || cmd.shouldList() || cmd.shouldListProfilers() || cmd.shouldListResultFormats()
+                || cmd.shouldListWithParams() || cmd.getThreads().hasValue()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        for (String threads : System.getProperty("dpt.threads", "1,2,4,8").split(",")) {
+            int t = Integer.parseInt(threads.trim());
+            ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd).threads(t);
+            if (cmd.getResult().hasValue()) {
+                String result = cmd.getResult().get();
+                int dot = result.lastIndexOf('.');
+                options.result(dot < 0 ? result + "-t" + t : result.substring(0, dot) + "-t" + t + result.substring(dot));
+            }
+            new Runner(options.build()).run();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+// dpt1010f15
+package dpt.jmh;
+
+import clojure.lang.IFn;
+import clojure.lang.Keyword;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Notifies of global event listeners, by all threads on one key or by each thread on a key of its own
+ */
+@State(Scope.Benchmark)
+public class Notify {
+    private static final IFn MAKE_LISTENERS = Workloads.fn("make-listeners");
+    private static final IFn NOTIFY_EVENT = Workloads.fn("notify-event");
+    private static final AtomicInteger KEYS = new AtomicInteger();
+
+    @Param({"1", "8"})
+    public int listeners;
+
+    private Object shared;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.shared = MAKE_LISTENERS.invoke(Keyword.intern("dpt.jmh", "shared-" + KEYS.incrementAndGet()), this.listeners);
+    }
+
+    @State(Scope.Thread)
+    public static class Own {
+        Object key;
+
+        @Setup(Level.Trial)
+        public void setup(Notify notify) {
+            this.key = MAKE_LISTENERS.invoke(Keyword.intern("dpt.jmh", "own-" + KEYS.incrementAndGet()), notify.listeners);
+        }
+    }
+
+    @Benchmark
+    public Object sharedKey() {
+        return NOTIFY_EVENT.invoke(this.shared);
+    }
+
+    @Benchmark
+    public Object ownKey(Own own) {
+        return NOTIFY_EVENT.invoke(own.key);
+    }
+}
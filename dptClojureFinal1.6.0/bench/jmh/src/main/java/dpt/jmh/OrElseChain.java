@@ -0,0 +1,34 @@
+// dpt1010f15
+package dpt.jmh;
+
+import clojure.lang.IFn;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Or-else chains where every alternative but the last retries, so each transaction rolls back all but one
+ */
+@State(Scope.Benchmark)
+public class OrElseChain {
+    private static final IFn MAKE_SLOTS = Workloads.fn("make-slots");
+    private static final IFn TAKE_FIRST = Workloads.fn("take-first");
+
+    @Param({"2", "8"})
+    public int alternatives;
+
+    private Object slots;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.slots = MAKE_SLOTS.invoke(this.alternatives);
+    }
+
+    @Benchmark
+    public Object takeFirst() {
+        return TAKE_FIRST.invoke(this.slots);
+    }
+}
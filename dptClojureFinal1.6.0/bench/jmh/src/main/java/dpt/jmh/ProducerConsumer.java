@@ -0,0 +1,68 @@
+// dpt1010f15
+package dpt.jmh;
+
+import clojure.lang.IFn;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Items passed through a bounded queue shared by all threads, producers and consumers block with retry
+ *
+ * Each benchmark thread produces a batch while a consumer thread of its own takes a batch, an invocation ends
+ * when both are done. As every invocation takes as many items as it puts, the threads can always make progress
+ * and no thread is left blocked when the iteration ends
+ */
+@State(Scope.Benchmark)
+public class ProducerConsumer {
+    private static final IFn MAKE_QUEUE = Workloads.fn("make-queue");
+    private static final IFn PRODUCE = Workloads.fn("produce");
+    private static final IFn CONSUME = Workloads.fn("consume");
+    private static final int BATCH = 100;
+
+    @Param({"1", "16"})
+    public int capacity;
+
+    private Object queue;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.queue = MAKE_QUEUE.invoke(this.capacity);
+    }
+
+    @State(Scope.Thread)
+    public static class Consumer {
+        ExecutorService executor;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            this.executor = Executors.newSingleThreadExecutor();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            this.executor.shutdown();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public Object transfer(Consumer consumer) throws Exception {
+        final Object q = this.queue;
+        Future<?> consumed = consumer.executor.submit(new Runnable() {
+            public void run() {
+                CONSUME.invoke(q, BATCH);
+            }
+        });
+        PRODUCE.invoke(q, BATCH);
+        return consumed.get();
+    }
+}
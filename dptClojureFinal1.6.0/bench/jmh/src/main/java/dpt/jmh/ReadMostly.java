@@ -0,0 +1,37 @@
+// dpt1010f15
+package dpt.jmh;
+
+import clojure.lang.IFn;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Snapshots summing all refs mixed with a percentage of single ref writes
+ */
+@State(Scope.Benchmark)
+public class ReadMostly {
+    private static final IFn MAKE_ACCOUNTS = Workloads.fn("make-accounts");
+    private static final IFn READ_MOSTLY = Workloads.fn("read-mostly");
+
+    @Param({"16", "256"})
+    public int refs;
+
+    @Param({"1", "10"})
+    public int writePercent;
+
+    private Object state;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.state = MAKE_ACCOUNTS.invoke(this.refs);
+    }
+
+    @Benchmark
+    public Object readMostly() {
+        return READ_MOSTLY.invoke(this.state, this.writePercent);
+    }
+}
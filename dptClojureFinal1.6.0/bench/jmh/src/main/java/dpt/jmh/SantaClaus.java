@@ -0,0 +1,38 @@
+// dpt1010f15
+package dpt.jmh;
+
+import clojure.lang.IFn;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The two Santa Claus programs of Santa Claus/ without sleeps, an invocation starts the 9 reindeer and 30 elf
+ * threads and ends when Santa has worked the given number of rounds. With more benchmark threads, independent
+ * runs share the STM
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SantaClaus {
+    private static final IFn WITH_EXTENSIONS = Workloads.fn("santa-with-extensions");
+    private static final IFn WITHOUT_EXTENSIONS = Workloads.fn("santa-without-extensions");
+
+    @Param({"100"})
+    public int rounds;
+
+    @Benchmark
+    public Object withExtensions() {
+        return WITH_EXTENSIONS.invoke(this.rounds);
+    }
+
+    @Benchmark
+    public Object withoutExtensions() {
+        return WITHOUT_EXTENSIONS.invoke(this.rounds);
+    }
+}
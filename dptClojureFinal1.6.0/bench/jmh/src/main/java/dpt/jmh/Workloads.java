@@ -0,0 +1,28 @@
+// dpt1010f15
+package dpt.jmh;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+
+/**
+ * Looks up the functions of the dpt.jmh.workloads namespace
+ */
+final class Workloads {
+    static {
+        // The benchmarks must run against the dpt build of Clojure, not a released one from a repository
+        try {
+            Class.forName("clojure.lang.STMStats");
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(
+                "The dpt build of Clojure is not on the class path, run mvn install in dptClojureFinal1.6.0 first", e);
+        }
+        Clojure.var("clojure.core", "require").invoke(Clojure.read("dpt.jmh.workloads"));
+    }
+
+    private Workloads() {
+    }
+
+    static IFn fn(String name) {
+        return Clojure.var("dpt.jmh.workloads", name);
+    }
+}
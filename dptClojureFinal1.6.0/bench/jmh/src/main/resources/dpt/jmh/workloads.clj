@@ -0,0 +1,223 @@
+; dpt1010f15
+(ns dpt.jmh.workloads
+  "Transactional workloads run by the JMH benchmarks in dpt.jmh, each benchmark
+  creates its state with a make- function and runs one operation per invocation"
+  (:use clojure.dpt)
+  (:import java.util.concurrent.ThreadLocalRandom))
+
+(set! *warn-on-reflection* true)
+
+(defn- random-int ^long [^long n]
+  (.nextInt (ThreadLocalRandom/current) (int n)))
+
+;;; Bank transfer
+(defn make-accounts
+  "Returns a vector of n accounts holding 1000 each"
+  [n]
+  (vec (repeatedly n #(ref 1000))))
+
+(defn transfer
+  "Moves 1 between two random accounts, fewer accounts means more contention"
+  [accounts]
+  (let [n (count accounts)
+        from (random-int n)
+        to (mod (+ from 1 (random-int (dec n))) n)]
+    (dosync
+      (alter (accounts from) dec)
+      (alter (accounts to) inc))))
+
+(defn total
+  "Returns the sum of the accounts in a single snapshot"
+  [accounts]
+  (dosync-read
+    (reduce + (map deref accounts))))
+
+;;; Read mostly snapshots
+(defn read-mostly
+  "Sums all refs in a snapshot, or in write-percent of the calls increments one of them"
+  [refs write-percent]
+  (if (< (random-int 100) write-percent)
+    (dosync
+      (alter (refs (random-int (count refs))) inc))
+    (total refs)))
+
+;;; Commute counters
+(defn make-counters
+  "Returns a vector of n counter refs, count-commute on them adds to striped cells"
+  [n]
+  (vec (repeatedly n counter-ref)))
+
+(defn count-commute
+  "Increments a random counter with commute"
+  [counters]
+  (dosync
+    (commute (counters (random-int (count counters))) inc)))
+
+(defn count-commute-lazy
+  "Increments a random counter with commute-lazy, so inc only runs at commit"
+  [counters]
+  (dosync
+    (commute-lazy (counters (random-int (count counters))) inc)))
+
+(defn count-alter
+  "Increments a random counter with alter, the baseline of count-commute"
+  [counters]
+  (dosync
+    (alter (counters (random-int (count counters))) inc)))
+
+;;; Event notification
+(defn make-listeners
+  "Adds n global listeners of event-key that read the context, returns the key"
+  [event-key n]
+  (dotimes [_ n]
+    (listen-with-params event-key false false context))
+  event-key)
+
+(defn notify-event
+  "Notifies the listeners of event-key"
+  [event-key]
+  (notify event-key event-key))
+
+;;; Producer consumer
+(defn make-queue
+  "Returns a bounded queue of the given capacity"
+  [capacity]
+  {:items (ref clojure.lang.PersistentQueue/EMPTY)
+   :capacity capacity})
+
+(defn produce
+  "Puts n items in the queue, retrying while the queue is full"
+  [{:keys [items capacity]} n]
+  (dotimes [i n]
+    (dosync
+      (if (< (count @items) capacity)
+        (alter items conj i)
+        (retry [items])))))
+
+(defn consume
+  "Takes n items from the queue, retrying while the queue is empty"
+  [{:keys [items]} n]
+  (dotimes [_ n]
+    (dosync
+      (if (seq @items)
+        (alter items pop)
+        (retry [items])))))
+
+;;; Or-else chains
+(defn make-slots
+  "Returns n slots where only the last one holds items, so or-else falls through
+  all other alternatives before it succeeds"
+  [n]
+  (conj (vec (repeatedly (dec n) #(ref 0))) (ref Long/MAX_VALUE)))
+
+(defn take-first
+  "Takes an item from the first slot holding one, by an or-else of an alternative per slot"
+  [slots]
+  (dosync
+    (apply or-else
+           (map (fn [slot]
+                  #(if (pos? @slot)
+                     (alter slot dec)
+                     (retry [slot])))
+                slots))))
+
+;;; Santa Claus, from the two programs in Santa Claus/ without the sleeps and
+;;; the printing, a run ends after the given number of times Santa has worked
+(defn- elem? [elem collection]
+  (some #(== elem %) collection))
+
+(defn- start-workers
+  "Starts number worker threads running (worker wid) and returns them"
+  [number worker]
+  (doall (for [wid (range number)]
+           (doto (Thread. ^Runnable #(worker wid))
+             (.start)))))
+
+(defn santa-with-extensions
+  "Runs the Santa Claus program written with retry until Santa has worked rounds times"
+  [rounds]
+  (let [sleep-ref (ref true)
+        done (ref false)
+        reindeer-queue-ref (ref [])
+        elf-queue-ref (ref [])
+        santa-wake (fn []
+                     (if @sleep-ref (alter sleep-ref not) (retry)))
+        goto-santa (fn [wid queue-ref]
+                     (if-not (elem? wid @queue-ref)
+                       (alter queue-ref conj wid)
+                       (retry [queue-ref done] #(or @done (not (elem? wid @queue-ref))))))
+        worker (fn [queue-ref max-queue wid]
+                 (loop []
+                   (when-not (dosync
+                               (cond
+                                 @done true
+                                 (< (count @queue-ref) max-queue)
+                                   (do (goto-santa wid queue-ref)
+                                       (when (== (count @queue-ref) max-queue)
+                                         (santa-wake))
+                                       false)
+                                 :else (retry)))
+                     (recur))))
+        workers (concat (start-workers 9 (partial worker reindeer-queue-ref 9))
+                        (start-workers 30 (partial worker elf-queue-ref 3)))]
+    (dotimes [_ rounds]
+      (dosync
+        (if @sleep-ref (retry) (alter sleep-ref not)))
+      (cond
+        (== 9 (count @reindeer-queue-ref)) (dosync (alter reindeer-queue-ref empty))
+        (== 3 (count @elf-queue-ref)) (dosync (alter elf-queue-ref empty))
+        :else (throw (IllegalStateException. "wrong number of workers at the door"))))
+    (dosync (ref-set done true))
+    (doseq [^Thread w workers]
+      (.join w))))
+
+(defn santa-without-extensions
+  "Runs the Santa Claus program written with semaphores and barriers until Santa
+  has worked rounds times"
+  [rounds]
+  (let [reindeer-queue-ref (ref [])
+        elf-queue-ref (ref [])
+        sleep-sem (java.util.concurrent.Semaphore. 0)
+        reindeer-sem (java.util.concurrent.Semaphore. 9)
+        elf-sem (java.util.concurrent.Semaphore. 3)
+        reindeer-barrier (java.util.concurrent.CyclicBarrier. 9)
+        elf-barrier (java.util.concurrent.CyclicBarrier. 3)
+        done (atom false)
+        worker (fn [queue-ref max-queue ^java.util.concurrent.Semaphore worker-sem
+                    ^java.util.concurrent.CyclicBarrier worker-barrier wid]
+                 (try
+                   (while (not @done)
+                     (try
+                       (dosync
+                         (if (and (< (count @queue-ref) max-queue)
+                                  (not (elem? wid @queue-ref)))
+                           (alter queue-ref conj wid)
+                           (throw (IllegalStateException.))))
+                       (catch IllegalStateException ise
+                         (.acquire worker-sem 1)
+                         (.await worker-barrier))))
+                   (catch InterruptedException e)
+                   (catch java.util.concurrent.BrokenBarrierException e)))
+        santa-work (fn [queue-ref ^java.util.concurrent.Semaphore semaphore]
+                     (let [permits (count @queue-ref)]
+                       (dosync
+                         (alter queue-ref empty))
+                       (.release semaphore permits)))]
+    (doseq [[queue-ref max-queue] [[reindeer-queue-ref 9] [elf-queue-ref 3]]]
+      (add-watch queue-ref :santa (fn [_key _ref old-state new-state]
+                                    (when (== (count new-state) max-queue)
+                                      (.release sleep-sem)))))
+    (let [workers (concat (start-workers 9 (partial worker reindeer-queue-ref 9 reindeer-sem reindeer-barrier))
+                          (start-workers 30 (partial worker elf-queue-ref 3 elf-sem elf-barrier)))]
+      (dotimes [_ rounds]
+        (.acquire sleep-sem)
+        (cond
+          (== 9 (count @reindeer-queue-ref)) (santa-work reindeer-queue-ref reindeer-sem)
+          (== 3 (count @elf-queue-ref)) (santa-work elf-queue-ref elf-sem)
+          :else (throw (IllegalStateException. "wrong number of workers at the door"))))
+      ; A transaction waiting for a lock swallows the interrupt, so workers are interrupted until they stop
+      (reset! done true)
+      (doseq [^Thread w workers]
+        (while (.isAlive w)
+          (.interrupt w)
+          (.join w 1))))))
@@ -11,7 +11,14 @@
       :author "dpt1010f15"}
   clojure.dpt
   (:import clojure.lang.EventManager)
+  (:import clojure.lang.EventDispatcher)
   (:import clojure.lang.LockingTransaction)
+  (:import (clojure.lang STMContentionManagerBarge STMContentionManagerBackoff
+                         STMContentionManagerKarma STMContentionManagerTimestamp))
+  (:import clojure.lang.STMStats)
+  (:import clojure.lang.STMProfiler)
+  (:import clojure.lang.STMHistory)
+  (:import clojure.lang.STMAfterCommit)
   (:import clojure.lang.RT))
 
 
@@ -129,12 +136,81 @@
   [event-key thread-local delete-after-run event-fn & event-args]
   (EventManager/listen event-key event-fn event-args thread-local delete-after-run))
 
+(defn listen-with
+  "Registers a event for the event identified by event-key, configured by the
+  options :thread-local (true by default), :once to delete the listener after
+  it has been executed and :async to always run it asynchronously on the
+  executor of event-key, as notify-async does"
+  [event-key options event-fn & event-args]
+  (EventManager/listen event-key event-fn event-args
+                       (get options :thread-local true)
+                       (boolean (:once options))
+                       (boolean (:async options))))
+
+(defn listen-batched
+  "Registers a event for the event identified by event-key that is run with a
+  vector of the contexts of the notifies of event-key as its context, instead
+  of once per notify. A batch is delivered once it holds :max-size contexts or
+  :max-delay-ms milliseconds after its first notify, whichever comes first, at
+  least one of them must be given. Batches run in the order they were filled
+  on the executor of event-key, see set-event-delivery!, and the contexts not
+  yet delivered are delivered when the event is dismissed. The listener is
+  thread local unless :thread-local is false"
+  [event-key options event-fn & event-args]
+  (EventManager/listenBatched event-key event-fn event-args
+                              (get options :thread-local true)
+                              (int (get options :max-size 0))
+                              (long (get options :max-delay-ms 0))))
+
 (defn notify
   "Notifies the events identified by the event-key keyword, and gives each
-  event accesses to data given as context"
+  event accesses to data given as context. The events of the wildcard of the
+  namespace of event-key, like :orders/* for :orders/created, the events of
+  the keys event-key is derived from, see derive-event, and the events of :*
+  are notified as well"
   ([event-key] (EventManager/notify event-key nil))
   ([event-key context] (EventManager/notify event-key context)))
 
+(defn notify-async
+  "Notifies the events identified by the event-key keyword like notify, but
+  runs them on the executor of event-key instead of the calling thread. The
+  events of a key run in the order they were notified, a full queue is handled
+  by the overflow policy of the key, see set-event-delivery!"
+  ([event-key] (EventManager/notifyAsync event-key nil))
+  ([event-key context] (EventManager/notifyAsync event-key context)))
+
+(defn set-event-delivery!
+  "Sets how events identified by event-key are delivered asynchronously. The
+  options are the :executor to run on, by default the send-off pool, the
+  :capacity of the queue of pending notifies, by default
+  -Dclojure.event.async.capacity or 1024, the :overflow policy applied when
+  the queue is full, one of :block (the default), :drop and :caller-runs, and
+  an :error-handler called with the key and the exception thrown by an event,
+  by default the uncaught exception handler of the delivering thread gets it.
+  Notifies queued before the change run before the ones queued after it"
+  [event-key options]
+  (EventDispatcher/configure event-key options))
+
+(defn event-delivery
+  "Returns a map of the :capacity and :overflow policy of event-key and the
+  number of notifies :queued, :delivered and :dropped and events that threw
+  :errors when delivered asynchronously"
+  [event-key]
+  (EventDispatcher/stats event-key))
+
+(defn derive-event
+  "Makes notifies of the child keyword also notify the events of the parent
+  keyword and of the keys parent is derived from, like derive does for
+  multimethods. Throws an IllegalArgumentException if parent is derived from
+  child"
+  [child parent]
+  (EventManager/derive child parent))
+
+(defn underive-event
+  "Removes the derivation of child from parent made by derive-event"
+  [child parent]
+  (EventManager/underive child parent))
+
 (defn dismiss
   "Dismisses an event identified by the combination of event-key and event-fn, "
   [event-key event-fn dismiss-from]
@@ -167,3 +243,252 @@
   "Returns the context for both types of events, returns nil if no context exists"
   []
   (RT/stmAbort))
+
+;;; Lazy commutes
+(defn commute-lazy
+  "Must be called in a transaction. Like commute, but fun is not called in the
+  transaction, it is only applied at commit to the latest value of ref unless
+  ref is read in the transaction first. Consecutive commutes of ref are applied
+  together at commit. Returns nil, as the in-transaction value is not computed"
+  [^clojure.lang.Ref ref fun & args]
+  (.commuteLazy ref fun args))
+
+;;; Counters
+(defn counter-ref
+  "Creates and returns a transactional counter with an initial value of init,
+  default 0, and zero or more options (in any order):
+    :meta metadata-map
+    :validator validate-fn
+  A counter is a ref of an integer that transactions add to with commute by
+  inc, dec, + or -, or with counter-add!. The additions of concurrent
+  transactions are spread over striped cells instead of serializing on the
+  write lock of the counter. Reads and ensure in a transaction see the value
+  at the read point like for any ref, alter and ref-set are not supported and
+  retry waits for a counter to change like for a ref. The validator of a counter is
+  called with its new value at commit, and the additions to a counter with a
+  validator serialize like writes of a ref"
+  ([] (counter-ref 0))
+  ([init & options]
+    (let [{:keys [meta validator]} (apply hash-map options)
+          counter (clojure.lang.CounterRef. (long init) meta)]
+      (when validator
+        (.setValidator counter validator))
+      counter)))
+
+(defn counter-add!
+  "Must be called in a transaction. Adds n to the counter at commit, without
+  computing the new value in the transaction, and returns nil"
+  [^clojure.lang.CounterRef counter n]
+  (.add counter (long n)))
+
+;;; Transaction Options
+(defmacro dosync-with
+  "Runs the exprs (in an implicit do) in a transaction like dosync, configured
+  by the options map, the options only apply if no transaction is running.
+  Supported options are:
+    :contention-manager  the STMContentionManager used to resolve conflicts
+    :read-only           when true refs can only be read, see dosync-read
+    :snapshot            when true refs can only be read and the read point is
+                         pinned, see dosync-snapshot
+    :irrevocable         when true the transaction runs once, see dosync-irrevocable
+    :ensure              :lock (the default) to read lock ensured refs until the
+                         commit, blocking their writers, or :optimistic to only
+                         check at commit that they did not change, retrying if
+                         they did. The default is set by -Dclojure.stm.ensure
+    :irrevocable-after   number of conflict retries after which the transaction
+                         runs irrevocably, overrides -Dclojure.stm.irrevocableAfter
+    :after-commit        :inline (the default) to run watches, wakeups of
+                         transactions blocked by retry and after-commit events
+                         before the transaction returns, or :background to run
+                         them after it returned, see await-after-commit. The
+                         default is set by -Dclojure.stm.afterCommit"
+  [options & body]
+  `(LockingTransaction/runInTransaction (fn [] ~@body) ~options))
+
+(defmacro dosync-read
+  "Runs the exprs (in an implicit do) in a read only transaction, which reads a
+  consistent snapshot without advancing the global clock or allocating per
+  attempt, writing a ref in it throws an IllegalStateException"
+  [& body]
+  `(dosync-with {:read-only true} ~@body))
+
+(defmacro dosync-snapshot
+  "Runs the exprs (in an implicit do) in a read only transaction like
+  dosync-read, but pins its read point, so every ref keeps the version it had
+  at that point until the transaction ends. The transaction never retries
+  because of concurrent writes, however long it runs, at the cost of the refs
+  written meanwhile keeping a version per write beyond their max history"
+  [& body]
+  `(dosync-with {:snapshot true} ~@body))
+
+(defmacro dosync-irrevocable
+  "Runs the exprs (in an implicit do) in an irrevocable transaction, which is
+  guaranteed to commit on its first attempt and may therefore perform I/O. Only
+  one irrevocable transaction runs at a time, it owns every ref it reads or
+  writes and other transactions only wait for it if they use the same refs.
+  Calling retry in it throws an IllegalStateException"
+  [& body]
+  `(dosync-with {:irrevocable true} ~@body))
+
+(defmacro dosync-async-with
+  "Runs the exprs (in an implicit do) in a transaction like dosync-with, but on
+  another thread, and returns a future of the value of the transaction. When the
+  transaction blocks with retry it does not hold a thread while waiting for the
+  refs to change. The options of dosync-with are supported, and :executor gives
+  the java.util.concurrent.Executor to run on, by default the send-off pool"
+  [options & body]
+  `(LockingTransaction/runAsync (fn [] ~@body) ~options))
+
+(defmacro dosync-async
+  "Runs the exprs (in an implicit do) in an asynchronous transaction, see
+  dosync-async-with. The returned future can be dereferenced and supports
+  Future and whenComplete"
+  [& body]
+  `(dosync-async-with nil ~@body))
+
+(defn await-after-commit
+  "Blocks until the watches, wakeups and after-commit events of every
+  transaction committed with :after-commit :background before the call have
+  run, or until timeout-ms milliseconds passed. Returns false on timeout"
+  ([] (STMAfterCommit/await -1))
+  ([timeout-ms] (STMAfterCommit/await (long timeout-ms))))
+
+(defn after-commit-stats
+  "Returns the number of transactions committed with :after-commit :background
+  that :queued and :completed their after-commit work, and the number of
+  watches and after-commit events that threw :errors, which are reported to
+  the uncaught exception handler of the thread running them"
+  []
+  (STMAfterCommit/snapshot))
+
+(defn contention-manager
+  "Returns a new instance of a built in contention manager, type is one of
+  :barge (the default), :backoff, :karma or :timestamp"
+  [type]
+  (case type
+    :barge (STMContentionManagerBarge.)
+    :backoff (STMContentionManagerBackoff.)
+    :karma (STMContentionManagerKarma.)
+    :timestamp (STMContentionManagerTimestamp.)
+    (throw (IllegalArgumentException. "type must be :barge, :backoff, :karma or :timestamp"))))
+
+(defn set-contention-manager!
+  "Sets the contention manager used by all transactions not given one by dosync-with"
+  [manager]
+  (LockingTransaction/setContentionManager manager))
+
+;;; Statistics
+(defn lock-timeouts
+  "Returns the number of times a transaction retried because it timed out
+  waiting for the write lock of a ref"
+  []
+  (LockingTransaction/getLockTimeouts))
+
+(defn stm-stats
+  "Returns a snapshot of the STM statistics since startup or the last reset:
+    :commits              number of committed transactions
+    :aborts               retries by cause, :read-fault, :write-conflict, :barged,
+                          :block-and-bail, :lock-timeout, :user-retry and :total
+    :attempts-per-commit  histogram of the attempts needed by each commit
+    :barges               :attempts and :successes of barging other transactions
+    :lock-timeouts        number of timed out waits for a write lock
+    :lock-wait-ns         histogram of the time spent waiting for contended write locks
+    :waiters              number of transactions currently blocked by retry
+    :wakeup-latency-ns    histogram of the time from a change to a blocked transaction waking
+    :listener-ns          histogram of the time spent running each event listener
+  A histogram is a map of :count, :sum, :mean and :buckets, a sorted map from
+  the lowest value of each power of two bucket to its count. Statistics are
+  only recorded when enabled at startup with -Dclojure.stm.stats=true or
+  -Dclojure.stm.jmx=true, otherwise only :lock-timeouts and :waiters change"
+  []
+  (STMStats/snapshot))
+
+(defn reset-stm-stats!
+  "Sets all STM statistics to zero"
+  []
+  (STMStats/resetAll))
+
+(defn register-stm-stats-mbean
+  "Registers the STM statistics as the JMX MBean clojure.lang:type=STMStats, this
+  is done at startup when -Dclojure.stm.jmx=true. The statistics are only
+  recorded when enabled at startup, see stm-stats"
+  []
+  (STMStats/registerMBean))
+
+;;; Contention profiling
+(defn start-stm-profiler
+  "Starts profiling one in every sample-interval transactions of each thread,
+  default 100, the profile is kept until reset-stm-profile! is called. Profiling
+  can be started at startup with -Dclojure.stm.profile=sample-interval"
+  ([] (start-stm-profiler 100))
+  ([sample-interval]
+    (STMProfiler/start (int sample-interval))))
+
+(defn stop-stm-profiler
+  "Stops profiling transactions, the profile is kept"
+  []
+  (STMProfiler/stop))
+
+(defn reset-stm-profile!
+  "Removes all profiled refs and call sites"
+  []
+  (STMProfiler/reset))
+
+(defn- rank
+  "Sorts the profiles by retries and then by time spent waiting for locks, hottest first"
+  [profiles]
+  (sort-by (juxt :retries :lock-wait-ns) #(compare %2 %1) profiles))
+
+(defn stm-profile
+  "Returns the contention profile of the sampled transactions as a map of:
+    :running          whether the profiler is sampling transactions
+    :sample-interval  number of transactions per sampled transaction
+    :refs             the refs involved in conflicts, identified by :id and the
+                      :name in their metadata
+    :sites            the dosync call sites of conflicting transactions, a
+                      :site is the calling function and source line
+  Each ref and site has its conflict :retries, :causes of the retries by abort
+  cause as in stm-stats, read :faults, contended :lock-waits and :lock-wait-ns.
+  The refs and sites are ranked hottest first, limited to the n hottest if given.
+  Counts are of the sampled transactions only, so they are roughly the real
+  counts divided by the sample interval"
+  ([] (stm-profile nil))
+  ([n]
+    (let [limit (if n #(take n %) identity)]
+      (-> (STMProfiler/snapshot)
+        (update-in [:refs] (comp vec limit rank))
+        (update-in [:sites] (comp vec limit rank))))))
+
+(defn print-stm-profile
+  "Prints the n hottest refs and call sites of the contention profile, default 10"
+  ([] (print-stm-profile 10))
+  ([n]
+    (let [{:keys [refs sites sample-interval]} (stm-profile n)
+          line (fn [label {:keys [retries faults lock-waits lock-wait-ns]}]
+                 (println (format "%10d %8d %10d %14d  %s"
+                                  retries faults lock-waits lock-wait-ns label)))]
+      (println "STM contention profile, one in" sample-interval "transactions sampled")
+      (println (format "%10s %8s %10s %14s  %s" "retries" "faults" "lock-waits" "lock-wait-ns" "ref"))
+      (doseq [r refs]
+        (line (str (:id r) (when-let [name (:name r)] (str " " name))) r))
+      (println (format "%10s %8s %10s %14s  %s" "retries" "faults" "lock-waits" "lock-wait-ns" "dosync"))
+      (doseq [s sites]
+        (line (:site s) s)))))
+
+;;; History
+(defn stm-history
+  "Returns the old versions kept by refs for their readers as a map of:
+    :versions  number of old versions held by all refs
+    :budget    most old versions the refs may hold together
+    :refs      number of refs holding old versions
+  A ref gains a version when a reader faults and drops one again when no reader
+  has read that far back for a while, within its min and max history"
+  []
+  (STMHistory/snapshot))
+
+(defn set-stm-history-budget!
+  "Sets the most old versions all refs may hold together, default 100000 or
+  -Dclojure.stm.history.budget. Refs holding more drop a version each time
+  they are written, down to their min history"
+  [versions]
+  (STMHistory/setBudget (long versions)))
@@ -0,0 +1,257 @@
+// dpt1010f15
+package clojure.lang;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+/**
+ * Flight recorder events of the STM
+ *
+ * This is the only class referring to jdk.jfr, it is compiled apart from the runtime when the JDK has the flight
+ * recorder and loaded by STMFlightRecorder by name. No event object is created unless a recording is running,
+ * and it is only kept when its event type is enabled in the recording
+ */
+final class STMJfr implements STMFlightRecorder.Events {
+    // Whether any recording is running, kept up to date by a listener so no event is created while none is
+    private static volatile boolean recording = false;
+
+    static {
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            public void recorderInitialized(FlightRecorder recorder) {
+                update(recorder);
+            }
+
+            public void recordingStateChanged(Recording changed) {
+                update(FlightRecorder.getFlightRecorder());
+            }
+        });
+    }
+
+    // Loads an event class, which fails on a JVM where the flight recorder cannot run
+    STMJfr() {
+        new TransactionEvent().isEnabled();
+    }
+
+    private static void update(FlightRecorder recorder) {
+        boolean running = false;
+        for (Recording r : recorder.getRecordings()) {
+            if (r.getState() == RecordingState.RUNNING) {
+                running = true;
+            }
+        }
+        recording = running;
+    }
+
+    @Name("clojure.stm.Transaction")
+    @Label("Transaction Attempt")
+    @Category({"Clojure", "STM"})
+    @Description("An attempt of a transaction from its read point until it committed or retried")
+    public static final class TransactionEvent extends Event {
+        @Label("Start Point")
+        long startPoint;
+        @Label("Read Point")
+        long readPoint;
+        @Label("Attempt")
+        int attempt;
+        @Label("Outcome")
+        @Description("committed, the cause of the retry, exception or terminated")
+        String outcome;
+    }
+
+    @Name("clojure.stm.Conflict")
+    @Label("Ref Conflict")
+    @Category({"Clojure", "STM"})
+    @Description("A transaction retries because of a ref another transaction wrote or owns")
+    public static final class ConflictEvent extends Event {
+        @Label("Start Point")
+        long startPoint;
+        @Label("Attempt")
+        int attempt;
+        @Label("Ref Id")
+        long refId;
+        @Label("Kind")
+        String kind;
+    }
+
+    @Name("clojure.stm.Barge")
+    @Label("Barge")
+    @Category({"Clojure", "STM"})
+    @Description("A transaction tries to abort the running transaction owning a ref")
+    public static final class BargeEvent extends Event {
+        @Label("Start Point")
+        long startPoint;
+        @Label("Attempt")
+        int attempt;
+        @Label("Ref Id")
+        long refId;
+        @Label("Other Start Point")
+        long otherStartPoint;
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("clojure.stm.BlockAndBail")
+    @Label("Block And Bail")
+    @Category({"Clojure", "STM"})
+    @Description("A transaction waits for the transaction owning a ref before it retries")
+    public static final class BlockAndBailEvent extends Event {
+        @Label("Start Point")
+        long startPoint;
+        @Label("Attempt")
+        int attempt;
+        @Label("Ref Id")
+        long refId;
+        @Label("Other Start Point")
+        long otherStartPoint;
+    }
+
+    @Name("clojure.stm.LockWait")
+    @Label("Write Lock Wait")
+    @Category({"Clojure", "STM"})
+    @Description("A transaction waits for a contended write lock of a ref")
+    public static final class LockWaitEvent extends Event {
+        @Label("Start Point")
+        long startPoint;
+        @Label("Attempt")
+        int attempt;
+        @Label("Ref Id")
+        long refId;
+        @Label("Acquired")
+        boolean acquired;
+    }
+
+    @Name("clojure.stm.Retry")
+    @Label("Retry")
+    @Category({"Clojure", "STM"})
+    @Description("A transaction blocks with retry until refs change, the duration is the time it was blocked")
+    public static final class RetryEvent extends Event {
+        @Label("Start Point")
+        long startPoint;
+        @Label("Attempt")
+        int attempt;
+        @Label("Refs")
+        int refs;
+        @Label("All")
+        @Description("Whether the transaction waits for all refs to change")
+        boolean all;
+    }
+
+    public Object beginTransaction() {
+        if (!recording) {
+            return null;
+        }
+        TransactionEvent event = new TransactionEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    public void endTransaction(Object e, long startPoint, long readPoint, int attempt, String outcome) {
+        TransactionEvent event = (TransactionEvent) e;
+        event.startPoint = startPoint;
+        event.readPoint = readPoint;
+        event.attempt = attempt;
+        event.outcome = outcome;
+        event.commit();
+    }
+
+    public void conflict(long startPoint, int attempt, long refId, String kind) {
+        if (!recording) {
+            return;
+        }
+        ConflictEvent event = new ConflictEvent();
+        if (event.shouldCommit()) {
+            event.startPoint = startPoint;
+            event.attempt = attempt;
+            event.refId = refId;
+            event.kind = kind;
+            event.commit();
+        }
+    }
+
+    public void barge(long startPoint, int attempt, long refId, long otherStartPoint, boolean success) {
+        if (!recording) {
+            return;
+        }
+        BargeEvent event = new BargeEvent();
+        if (event.shouldCommit()) {
+            event.startPoint = startPoint;
+            event.attempt = attempt;
+            event.refId = refId;
+            event.otherStartPoint = otherStartPoint;
+            event.success = success;
+            event.commit();
+        }
+    }
+
+    public Object beginBlockAndBail() {
+        if (!recording) {
+            return null;
+        }
+        BlockAndBailEvent event = new BlockAndBailEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    public void endBlockAndBail(Object e, long startPoint, int attempt, long refId, long otherStartPoint) {
+        BlockAndBailEvent event = (BlockAndBailEvent) e;
+        event.startPoint = startPoint;
+        event.attempt = attempt;
+        event.refId = refId;
+        event.otherStartPoint = otherStartPoint;
+        event.commit();
+    }
+
+    public Object beginLockWait() {
+        if (!recording) {
+            return null;
+        }
+        LockWaitEvent event = new LockWaitEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    public void endLockWait(Object e, long startPoint, int attempt, long refId, boolean acquired) {
+        LockWaitEvent event = (LockWaitEvent) e;
+        event.startPoint = startPoint;
+        event.attempt = attempt;
+        event.refId = refId;
+        event.acquired = acquired;
+        event.commit();
+    }
+
+    public Object beginRetry(long startPoint, int attempt, int refs, boolean all) {
+        if (!recording) {
+            return null;
+        }
+        RetryEvent event = new RetryEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.startPoint = startPoint;
+        event.attempt = attempt;
+        event.refs = refs;
+        event.all = all;
+        event.begin();
+        return event;
+    }
+
+    public void endRetry(Object e) {
+        ((RetryEvent) e).commit();
+    }
+}
@@ -0,0 +1,319 @@
+// dpt1010f15
+package clojure.lang;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Transactional counter whose value is spread over striped cells, created by clojure.dpt/counter-ref
+ *
+ * Transactions add to a counter with commute or clojure.dpt/counter-add!, and at commit each adds its sum to a
+ * single cell it claims without waiting, instead of taking the write lock of the counter. A cell is claimed
+ * before the commit point is taken and released once the sum and commit point are stored in it, so a
+ * transaction reading the counter waits for the claimed cells it sees and only uses cells that changed no
+ * later than its read point. Each cell also keeps its previous value, so readers fault only when a cell
+ * changed twice since their read point. Ensuring a counter claims every cell over the commit, as does adding
+ * to a counter with a validator, which validates the new sum while the cells are claimed. An irrevocable
+ * transaction claims them from its first read of the counter until it ends, so readers wait for a cell only as
+ * long as for a write lock and then retry. Waiting for a claimed cell blocks on the counter until a cell is
+ * released, like waiting for a lock. The version of the counter is the latest commit point that added to
+ * it, so retry waits for a counter to change like for a ref
+ */
+public class CounterRef extends Ref {
+    // Cells are a power of two of at least two times the processors
+    private static final int CELL_BITS =
+        Math.max(1, Math.min(6, 33 - Integer.numberOfLeadingZeros(Runtime.getRuntime().availableProcessors())));
+    private static final int CELLS = 1 << CELL_BITS;
+    // Each cell is a cache line of its stamp, value, commit point, previous value and previous commit point,
+    // the stamp is odd while the cell is claimed
+    private static final int STRIDE = 8;
+    private static final int STAMP = 0;
+    private static final int VALUE = 1;
+    private static final int POINT = 2;
+    private static final int PREV_VALUE = 3;
+    private static final int PREV_POINT = 4;
+
+    private static final Var INC = RT.var("clojure.core", "inc");
+    private static final Var DEC = RT.var("clojure.core", "dec");
+    private static final Var PLUS = RT.var("clojure.core", "+");
+    private static final Var MINUS = RT.var("clojure.core", "-");
+
+    // Returned by valueAt when a cell stayed claimed for longer than the caller waits
+    static final Object CLAIMED = new Object();
+
+    private final AtomicLongArray cells = new AtomicLongArray(CELLS * STRIDE);
+    // Threads waiting on this for a cell to be released, releases only notify while it is positive
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    public CounterRef(long initVal) {
+        this(initVal, null);
+    }
+
+    public CounterRef(long initVal, IPersistentMap meta) {
+        super(null, meta);
+        this.cells.set(VALUE, initVal);
+        this.cells.set(PREV_VALUE, initVal);
+    }
+
+    /**
+     * Returns the latest value, the sum of all cells
+     */
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < CELLS; i++) {
+            sum += this.cells.get(i * STRIDE + VALUE);
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the value at readPoint, null if a cell changed more than once after it, or CLAIMED if a cell stayed
+     * claimed for longer than waitNanos, as an irrevocable transaction holds the cells it read until it ends
+     */
+    Object valueAt(long readPoint, long waitNanos) throws InterruptedException {
+        long sum = 0;
+        long deadline = System.nanoTime() + waitNanos;
+        for (int i = 0; i < CELLS; i++) {
+            int base = i * STRIDE;
+            while (true) {
+                long stamp = this.cells.get(base + STAMP);
+                if ((stamp & 1) != 0) {
+                    // A committing transaction claimed the cell and may commit at or before our read point
+                    if (!awaitRelease(i, stamp, deadline)) {
+                        return CLAIMED;
+                    }
+                    continue;
+                }
+                long value;
+                if (this.cells.get(base + POINT) <= readPoint) {
+                    value = this.cells.get(base + VALUE);
+                } else if (this.cells.get(base + PREV_POINT) <= readPoint) {
+                    value = this.cells.get(base + PREV_VALUE);
+                } else {
+                    return null;
+                }
+                if (this.cells.get(base + STAMP) == stamp) {
+                    sum += value;
+                    break;
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Records point as the version of the counter once a commit at point added to it, so the blocking behaviors
+     * of retry see the counter changed like a ref. Commits claiming different cells may record out of order
+     */
+    void committed(long point) {
+        synchronized (this.tvals) {
+            if (point > this.tvals.point) {
+                this.tvals.point = point;
+            }
+        }
+    }
+
+    /**
+     * Returns whether no cell changed after readPoint, must hold all cells
+     */
+    boolean unchangedSince(long readPoint) {
+        for (int i = 0; i < CELLS; i++) {
+            if (this.cells.get(i * STRIDE + POINT) > readPoint) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Blocks until the claim of cell with stamp is released, returns false if it is still claimed at deadline
+     *
+     * @param deadline The System.nanoTime to give up at, or Long.MAX_VALUE to wait without a limit
+     */
+    private boolean awaitRelease(int cell, long stamp, long deadline) throws InterruptedException {
+        int base = cell * STRIDE;
+        this.waiting.incrementAndGet();
+        try {
+            // The stamp is checked after waiting is incremented, so a release either is seen here or notifies
+            synchronized (this) {
+                while (this.cells.get(base + STAMP) == stamp) {
+                    if (deadline == Long.MAX_VALUE) {
+                        this.wait();
+                    } else {
+                        long left = deadline - System.nanoTime();
+                        if (left <= 0) {
+                            return false;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this, left);
+                    }
+                }
+            }
+            return true;
+        } finally {
+            this.waiting.decrementAndGet();
+        }
+    }
+
+    private void released() {
+        if (this.waiting.get() > 0) {
+            synchronized (this) {
+                this.notifyAll();
+            }
+        }
+    }
+
+    private boolean tryClaim(int cell) {
+        int base = cell * STRIDE;
+        long stamp = this.cells.get(base + STAMP);
+        return (stamp & 1) == 0 && this.cells.compareAndSet(base + STAMP, stamp, stamp + 1);
+    }
+
+    /**
+     * Claims a free cell, starting at the cell of the current thread, and returns it, or -1 if all cells stayed
+     * claimed until deadline, which only happens while transactions ensure the counter or read it irrevocably
+     *
+     * @param deadline The System.nanoTime to give up at, or Long.MAX_VALUE to wait without a limit
+     */
+    int claimAny(long deadline) throws InterruptedException {
+        long id = Thread.currentThread().getId();
+        int cell = (int) ((id * 0x9E3779B97F4A7C15L) >>> (64 - CELL_BITS));
+        while (true) {
+            for (int i = 0; i < CELLS; i++) {
+                int c = (cell + i) & (CELLS - 1);
+                if (tryClaim(c)) {
+                    return c;
+                }
+            }
+            // All cells are only claimed by transactions claiming all of them, which release them together
+            long stamp = this.cells.get(cell * STRIDE + STAMP);
+            if ((stamp & 1) != 0 && !awaitRelease(cell, stamp, deadline)) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Claims all cells in order, returns false with none claimed if one stayed claimed by another transaction
+     * until deadline. Cells are claimed in the same order by all transactions, so waiting cannot deadlock
+     *
+     * @param deadline The System.nanoTime to give up at, or Long.MAX_VALUE to wait without a limit, only an
+     *                 irrevocable transaction may wait without a limit
+     */
+    boolean claimAll(long deadline) throws InterruptedException {
+        for (int i = 0; i < CELLS; i++) {
+            while (!tryClaim(i)) {
+                long stamp = this.cells.get(i * STRIDE + STAMP);
+                boolean released = false;
+                try {
+                    released = (stamp & 1) == 0 || awaitRelease(i, stamp, deadline);
+                } finally {
+                    if (!released) {
+                        for (int j = 0; j < i; j++) {
+                            release(j);
+                        }
+                    }
+                }
+                if (!released) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds delta to a claimed cell at the commit point, the cell stays claimed
+     */
+    void add(int cell, long delta, long point) {
+        int base = cell * STRIDE;
+        this.cells.set(base + PREV_VALUE, this.cells.get(base + VALUE));
+        this.cells.set(base + PREV_POINT, this.cells.get(base + POINT));
+        this.cells.set(base + VALUE, this.cells.get(base + VALUE) + delta);
+        this.cells.set(base + POINT, point);
+    }
+
+    void release(int cell) {
+        this.cells.incrementAndGet(cell * STRIDE + STAMP);
+        released();
+    }
+
+    void releaseAll() {
+        for (int i = 0; i < CELLS; i++) {
+            this.cells.incrementAndGet(i * STRIDE + STAMP);
+        }
+        released();
+    }
+
+    /**
+     * Returns the amount a commute of the counter by fn and args adds, only inc, dec, + and - of integers
+     * can be applied to a counter
+     */
+    static long delta(IFn fn, ISeq args) {
+        if (fn == INC.deref() && args == null) {
+            return 1;
+        } else if (fn == DEC.deref() && args == null) {
+            return -1;
+        }
+        boolean plus = fn == PLUS.deref();
+        // Without arguments - negates rather than subtracts
+        if (!plus && (fn != MINUS.deref() || args == null)) {
+            throw new IllegalArgumentException("A counter can only be commuted by inc, dec, + or -");
+        }
+        long sum = 0;
+        for (ISeq s = args; s != null; s = s.next()) {
+            Object n = s.first();
+            if (!(n instanceof Long || n instanceof Integer || n instanceof Short || n instanceof Byte)) {
+                throw new IllegalArgumentException("A counter can only be commuted by integers, not " + n);
+            }
+            sum = Numbers.add(sum, ((Number) n).longValue());
+        }
+        return plus ? sum : Numbers.minus(sum);
+    }
+
+    public Object deref() {
+        LockingTransaction t = LockingTransaction.getRunning();
+        if (t == null) {
+            return sum();
+        }
+        return t.doGetCounter(this);
+    }
+
+    /**
+     * Adds n to the counter at commit, must be called in a transaction
+     */
+    public void add(long n) {
+        LockingTransaction.getEx().doAddCounter(this, n);
+    }
+
+    /**
+     * Adds the amount of an inc, dec, + or - commute and returns the latest value plus the amount added by the
+     * transaction, as commute does for refs
+     */
+    public Object commute(IFn fn, ISeq args) {
+        return LockingTransaction.getEx().doAddCounter(this, delta(fn, args));
+    }
+
+    public void commuteLazy(IFn fn, ISeq args) {
+        add(delta(fn, args));
+    }
+
+    public void touch() {
+        LockingTransaction.getEx().doEnsureCounter(this);
+    }
+
+    public Object set(Object val) {
+        throw new UnsupportedOperationException("A counter can only be changed by commute or counter-add!");
+    }
+
+    public Object alter(IFn fn, ISeq args) {
+        throw new UnsupportedOperationException("A counter can only be changed by commute or counter-add!");
+    }
+
+    public void trimHistory() {
+    }
+
+    public int getHistoryCount() {
+        return 0;
+    }
+}
@@ -0,0 +1,146 @@
+// dpt1010f15
+package clojure.lang;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Buffer of the contexts notified to a batched listener, used by listenBatched
+ *
+ * Notifies add their context to the buffer instead of running the listener. The buffer is delivered as a vector
+ * of the contexts once it holds maxSize contexts or maxDelayMs milliseconds after its first context was added,
+ * whichever comes first. Batches are delivered through EventDispatcher, so the batches of a listener run in the
+ * order they were filled, off the notifying thread and with the overflow policy of the key it listens to
+ *
+ * A full batch is only swapped out while holding the lock of the buffer. It is dispatched after the lock is
+ * released, by one thread at a time so batches keep their order, and a notify blocked by the overflow policy
+ * does not block the other notifies of the listener. The timer hands its batches to the send-off pool, so a
+ * blocked dispatch never delays the windows of other listeners
+ */
+final class EventBatch {
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "clojure-event-batch-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    final int maxSize;
+    final long maxDelayMs;
+    // The contexts of the batch being filled and the number of batches delivered before it, guarded by this
+    private ArrayList<Object> contexts = new ArrayList<Object>();
+    private long delivered = 0;
+    // Batches swapped out and not dispatched yet, and whether a thread is dispatching them
+    private final ConcurrentLinkedQueue<PersistentVector> filled = new ConcurrentLinkedQueue<PersistentVector>();
+    private final AtomicBoolean dispatching = new AtomicBoolean();
+
+    /**
+     * Default constructor
+     *
+     * @param maxSize    The number of contexts that fill a batch, 0 for no limit
+     * @param maxDelayMs The milliseconds a batch is filled before it is delivered, 0 for no limit
+     */
+    EventBatch(int maxSize, long maxDelayMs) {
+        if (maxSize < 0 || maxDelayMs < 0 || (maxSize == 0 && maxDelayMs == 0)) {
+            throw new IllegalArgumentException("A batched listener needs a positive max size or max delay");
+        }
+        this.maxSize = maxSize == 0 ? Integer.MAX_VALUE : maxSize;
+        this.maxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * Adds context to the batch of fn, delivering the batch if it is full
+     *
+     * @param fn      The batched listener
+     * @param context Data given from notify
+     */
+    void add(final EventFn fn, Object context) {
+        long batch = -1;
+        boolean full = false;
+        synchronized (this) {
+            this.contexts.add(context);
+            if (this.contexts.size() >= this.maxSize) {
+                swap();
+                full = true;
+            } else if (this.contexts.size() == 1 && this.maxDelayMs > 0) {
+                batch = this.delivered;
+            }
+        }
+        if (full) {
+            dispatch(fn);
+        } else if (batch >= 0) {
+            final long timed = batch;
+            EventBatch.timer.schedule(new Runnable() {
+                public void run() {
+                    if (EventBatch.this.swap(timed)) {
+                        Agent.soloExecutor.execute(new Runnable() {
+                            public void run() {
+                                EventBatch.this.dispatch(fn);
+                            }
+                        });
+                    }
+                }
+            }, this.maxDelayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Delivers the contexts added to the batch of fn so far, if any
+     *
+     * @param fn The batched listener
+     */
+    void flush(EventFn fn) {
+        if (swap(-1)) {
+            dispatch(fn);
+        }
+    }
+
+    /**
+     * Swaps out the batch being filled, unless it is empty or only the batch numbered batch is to be swapped out
+     * and it was already, returns whether it was swapped out
+     */
+    private synchronized boolean swap(long batch) {
+        if (!this.contexts.isEmpty() && (batch < 0 || batch == this.delivered)) {
+            swap();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Queues the batch being filled for dispatch and starts the next one, must hold the lock of this so batches
+     * are queued in the order they were filled
+     */
+    private void swap() {
+        this.filled.offer(PersistentVector.create(this.contexts));
+        this.contexts = new ArrayList<Object>();
+        this.delivered++;
+    }
+
+    /**
+     * Dispatches the queued batches on the key fn listens to, unless another thread is dispatching them
+     */
+    private void dispatch(EventFn fn) {
+        while (this.dispatching.compareAndSet(false, true)) {
+            try {
+                PersistentVector contexts;
+                while ((contexts = this.filled.poll()) != null) {
+                    EventDispatcher.dispatch(fn.key(), new EventFn[] {fn}, contexts);
+                }
+            } finally {
+                this.dispatching.set(false);
+            }
+            // A batch queued after the last poll saw this thread still dispatching
+            if (this.filled.isEmpty()) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+// dpt1010f15
+package clojure.lang;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous delivery of events, used by notifyAsync and by listeners registered as async
+ *
+ * Each key has a bounded queue of deliveries, a delivery being the listeners found by a notify together with
+ * its context. A queue is drained by one task at a time on the executor of the key, so the deliveries of a key
+ * run in the order they were notified while different keys run in parallel. When the queue of a key is full
+ * the overflow policy of the key decides what happens to a new delivery: :block waits for room, :drop discards
+ * it and :caller-runs runs it on the notifying thread. Keys use the agent send-off pool, a capacity of
+ * -Dclojure.event.async.capacity deliveries and :block until configured otherwise
+ *
+ * Exceptions thrown by listeners are given to the error handler of the key, or to the uncaught exception
+ * handler of the delivering thread when the key has none. Configuring a key replaces its queue, the new queue
+ * only starts once the deliveries left in the old one have run, so the order of a key holds across a change
+ */
+public final class EventDispatcher {
+    public static final Keyword EXECUTORKEYWORD = Keyword.intern("executor");
+    public static final Keyword CAPACITYKEYWORD = Keyword.intern("capacity");
+    public static final Keyword OVERFLOWKEYWORD = Keyword.intern("overflow");
+    public static final Keyword ERRORHANDLERKEYWORD = Keyword.intern("error-handler");
+    public static final Keyword BLOCKKEYWORD = Keyword.intern("block");
+    public static final Keyword DROPKEYWORD = Keyword.intern("drop");
+    public static final Keyword CALLERRUNSKEYWORD = Keyword.intern("caller-runs");
+
+    private static final int CAPACITY = Integer.getInteger("clojure.event.async.capacity", 1024);
+    // Deliveries run by a task before it leaves the executor to other tasks
+    private static final int BATCH = 64;
+
+    private static final ConcurrentHashMap<Keyword, Queue> queues = new ConcurrentHashMap<Keyword, Queue>();
+
+    private EventDispatcher() {
+    }
+
+    /**
+     * The listeners found by a notify and the context they run with
+     */
+    static final class Delivery {
+        final Keyword key;
+        final EventFn[] listeners;
+        final Object context;
+
+        Delivery(Keyword key, EventFn[] listeners, Object context) {
+            this.key = key;
+            this.listeners = listeners;
+            this.context = context;
+        }
+    }
+
+    /**
+     * The pending deliveries of a key and how they are run
+     */
+    static final class Queue implements Runnable {
+        final Executor executor;
+        final int capacity;
+        final Keyword overflow;
+        final IFn errorHandler;
+        final ArrayBlockingQueue<Delivery> pending;
+        // Set while a task draining the queue is scheduled, the queue is never left non empty without one
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        volatile Thread drainer;
+        // The queue this one replaced while it still has deliveries to run, this queue is not drained before
+        volatile Queue previous;
+        // The queue replacing this one, scheduled once this one has run its deliveries
+        volatile Queue next;
+        final AtomicBoolean handedOver = new AtomicBoolean();
+
+        Queue(Executor executor, int capacity, Keyword overflow, IFn errorHandler) {
+            this.executor = executor;
+            this.capacity = capacity;
+            this.overflow = overflow;
+            this.errorHandler = errorHandler;
+            this.pending = new ArrayBlockingQueue<Delivery>(capacity);
+        }
+
+        void offer(Delivery delivery) {
+            if ( ! this.pending.offer(delivery)) {
+                // A listener of the key notifying it again cannot wait for itself to drain the queue
+                if (this.overflow == CALLERRUNSKEYWORD || Thread.currentThread() == this.drainer) {
+                    run(delivery);
+                    return;
+                } else if (this.overflow == DROPKEYWORD) {
+                    this.dropped.incrementAndGet();
+                    return;
+                }
+                try {
+                    this.pending.put(delivery);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw Util.sneakyThrow(e);
+                }
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            // The queue this one replaced schedules it once its own deliveries have run
+            if (this.previous != null) {
+                return;
+            }
+            if (this.scheduled.compareAndSet(false, true)) {
+                try {
+                    this.executor.execute(this);
+                } catch (RuntimeException e) {
+                    this.scheduled.set(false);
+                    throw e;
+                }
+            }
+        }
+
+        public void run() {
+            this.drainer = Thread.currentThread();
+            try {
+                Delivery delivery;
+                for (int i = 0; i < BATCH && (delivery = this.pending.poll()) != null; i++) {
+                    run(delivery);
+                }
+            } finally {
+                this.drainer = null;
+                this.scheduled.set(false);
+                // Deliveries offered after the last poll saw the task still scheduled
+                if ( ! this.pending.isEmpty()) {
+                    schedule();
+                } else {
+                    handOver();
+                }
+            }
+        }
+
+        /**
+         * Schedules the queue replacing this one, once this one is replaced and has no delivery left to run
+         */
+        void handOver() {
+            Queue next = this.next;
+            if (next != null && this.pending.isEmpty() && ! this.scheduled.get()
+                && this.handedOver.compareAndSet(false, true)) {
+                next.previous = null;
+                next.schedule();
+            }
+        }
+
+        private void run(Delivery delivery) {
+            for (EventFn fn : delivery.listeners) {
+                if ( ! fn.claim()) {
+                    continue;
+                }
+                if (fn.deleteAfterRun()) {
+                    EventManager.removeGlobal(fn.key(), fn);
+                }
+                try {
+                    EventManager.run(fn, delivery.context);
+                } catch (Throwable e) {
+                    // A failing listener, or error handler, does not stop the others or the queue
+                    this.errors.incrementAndGet();
+                    try {
+                        if (this.errorHandler != null) {
+                            this.errorHandler.invoke(delivery.key, e);
+                        } else {
+                            uncaught(e);
+                        }
+                    } catch (Throwable h) {
+                        uncaught(h);
+                    }
+                }
+            }
+            this.delivered.incrementAndGet();
+        }
+    }
+
+    /**
+     * Reports an exception to the uncaught exception handler of the delivering thread, as there is no caller
+     * left to throw it to
+     */
+    private static void uncaught(Throwable e) {
+        Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+    }
+
+    private static Queue queue(Keyword key) {
+        Queue queue = queues.get(key);
+        if (queue == null) {
+            Queue created = new Queue(Agent.soloExecutor, CAPACITY, BLOCKKEYWORD, null);
+            queue = queues.putIfAbsent(key, created);
+            if (queue == null) {
+                queue = created;
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Delivers listeners of key asynchronously according to the overflow policy of key
+     *
+     * @param key       The key notified
+     * @param listeners The listeners to run
+     * @param context   Data given from notify
+     */
+    static void dispatch(Keyword key, EventFn[] listeners, Object context) {
+        queue(key).offer(new Delivery(key, listeners, context));
+    }
+
+    /**
+     * Sets how the events of key are delivered asynchronously, deliveries already queued for key are run as
+     * configured before and ahead of the deliveries queued after
+     *
+     * @param key     The key to configure
+     * @param options A map of the :executor to run on, the :capacity of the queue, the :overflow policy of
+     *                :block, :drop or :caller-runs and an :error-handler called with the key and the exception
+     *                thrown by a listener
+     */
+    public static void configure(Keyword key, IPersistentMap options) {
+        Executor executor = Agent.soloExecutor;
+        int capacity = CAPACITY;
+        Keyword overflow = BLOCKKEYWORD;
+        IFn errorHandler = null;
+        if (options != null) {
+            if (options.valAt(EXECUTORKEYWORD) != null) {
+                executor = (Executor) options.valAt(EXECUTORKEYWORD);
+            }
+            if (options.valAt(CAPACITYKEYWORD) != null) {
+                capacity = RT.intCast(options.valAt(CAPACITYKEYWORD));
+                if (capacity < 1) {
+                    throw new IllegalArgumentException("The capacity of an event queue must be positive");
+                }
+            }
+            if (options.valAt(OVERFLOWKEYWORD) != null) {
+                overflow = (Keyword) options.valAt(OVERFLOWKEYWORD);
+                if (overflow != BLOCKKEYWORD && overflow != DROPKEYWORD && overflow != CALLERRUNSKEYWORD) {
+                    throw new IllegalArgumentException("The overflow policy must be either :block, :drop or :caller-runs");
+                }
+            }
+            errorHandler = (IFn) options.valAt(ERRORHANDLERKEYWORD);
+        }
+        Queue created = new Queue(executor, capacity, overflow, errorHandler);
+        while (true) {
+            Queue replaced = queues.get(key);
+            created.previous = replaced;
+            if (replaced == null) {
+                if (queues.putIfAbsent(key, created) == null) {
+                    return;
+                }
+            } else if (queues.replace(key, replaced, created)) {
+                replaced.next = created;
+                replaced.handOver();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the asynchronous delivery of key as a map of its :capacity, :overflow policy, the deliveries
+     * :queued, :delivered and :dropped and the listener :errors
+     */
+    public static IPersistentMap stats(Keyword key) {
+        Queue queue = queues.get(key);
+        if (queue == null) {
+            queue = new Queue(Agent.soloExecutor, CAPACITY, BLOCKKEYWORD, null);
+        }
+        return RT.map(
+            CAPACITYKEYWORD, queue.capacity,
+            OVERFLOWKEYWORD, queue.overflow,
+            Keyword.intern("queued"), queue.pending.size(),
+            Keyword.intern("delivered"), queue.delivered.get(),
+            Keyword.intern("dropped"), queue.dropped.get(),
+            Keyword.intern("errors"), queue.errors.get());
+    }
+}
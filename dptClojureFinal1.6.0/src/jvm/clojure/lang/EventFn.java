@@ -1,25 +1,76 @@
 // dpt1010f15
 package clojure.lang;
 
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 /**
  * EventFn class for storing functions for later execution
  */
 public class EventFn {
+    final private Keyword key;
     final private IFn fn;
     final private ISeq args;
     final private boolean deleteAfterRun;
+    final private boolean async;
+    final private EventBatch batch;
+    // Set by the notify that runs a function deleted after its run, so concurrent notifies run it only once
+    private volatile int claimed = 0;
+
+    private static final AtomicIntegerFieldUpdater<EventFn> claimedUpdater =
+        AtomicIntegerFieldUpdater.newUpdater(EventFn.class, "claimed");
 
     /**
      * Constructor allowing to delete function when it has been executed once
      *
+     * @param key            The keyword the function listens to
      * @param fn             The function to be executed on run
      * @param args           The arguments to the function given as fn
      * @param deleteAfterRun Whether or not to delete the function when it has been executed once
      */
-    EventFn(IFn fn, ISeq args, boolean deleteAfterRun) {
+    EventFn(Keyword key, IFn fn, ISeq args, boolean deleteAfterRun) {
+        this(key, fn, args, deleteAfterRun, false);
+    }
+
+    /**
+     * Constructor allowing the function to be run asynchronously by every notify
+     *
+     * @param key            The keyword the function listens to
+     * @param fn             The function to be executed on run
+     * @param args           The arguments to the function given as fn
+     * @param deleteAfterRun Whether or not to delete the function when it has been executed once
+     * @param async          Whether or not to run the function on the executor of its key
+     */
+    EventFn(Keyword key, IFn fn, ISeq args, boolean deleteAfterRun, boolean async) {
+        this(key, fn, args, deleteAfterRun, async, null);
+    }
+
+    /**
+     * Constructor allowing the function to be run with batches of the contexts of notifies
+     *
+     * @param key   The keyword the function listens to
+     * @param fn    The function to be executed on run
+     * @param args  The arguments to the function given as fn
+     * @param batch The buffer the contexts of notifies are added to
+     */
+    EventFn(Keyword key, IFn fn, ISeq args, EventBatch batch) {
+        this(key, fn, args, false, false, batch);
+    }
+
+    private EventFn(Keyword key, IFn fn, ISeq args, boolean deleteAfterRun, boolean async, EventBatch batch) {
+        this.key = key;
         this.fn = fn;
         this.args = args;
         this.deleteAfterRun = deleteAfterRun;
+        this.async = async;
+        this.batch = batch;
+    }
+
+    /**
+     * Returns the keyword the thunk listens to, which differs from the notified keyword for wildcards and
+     * derived keywords
+     */
+    Keyword key() {
+        return this.key;
     }
 
     /**
@@ -31,6 +82,29 @@ public class EventFn {
         return this.deleteAfterRun;
     }
 
+    /**
+     * Indicates if the thunk is run asynchronously
+     */
+    boolean async() {
+        return this.async;
+    }
+
+    /**
+     * Returns the buffer of the contexts of notifies if the thunk is run with batches of them, otherwise null
+     */
+    EventBatch batch() {
+        return this.batch;
+    }
+
+    /**
+     * Claims the function for a run, only the first claim of a function deleted after its run succeeds
+     *
+     * @return Whether the function should be run
+     */
+    boolean claim() {
+        return !this.deleteAfterRun || claimedUpdater.compareAndSet(this, 0, 1);
+    }
+
     /**
      * Execute the thunk and returns the value computed
      *
@@ -0,0 +1,194 @@
+// dpt1010f15
+package clojure.lang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dispatch index of events, resolves a notified key to the keys and global listeners it reaches
+ *
+ * A notify of a key also reaches the listeners of the wildcard of its namespace, :orders/* for :orders/created,
+ * the listeners of the keys it is derived from by derive, and their wildcards, and finally the listeners of :*
+ * which every key reaches. The keys reached and the global listeners of all of them are computed on the first
+ * notify of a key and kept, so a notify is still a single lookup. The kept listeners are dropped whenever a
+ * global listener is added or removed and the kept keys whenever the hierarchy changes. At most
+ * -Dclojure.event.indexSize keys are kept, 4096 by default, so notifying keys created at runtime does not keep
+ * every one of them, keys first notified while the index is full are resolved on each notify instead
+ */
+final class EventIndex {
+    static final Keyword WILDCARD = Keyword.intern("*");
+
+    private static final EventFn[] NOLISTENERS = new EventFn[0];
+    private static final int SIZE = Integer.getInteger("clojure.event.indexSize", 4096);
+
+    // The keys each key is derived from, changed while holding the lock of parents
+    private static final ConcurrentHashMap<Keyword, Keyword[]> parents = new ConcurrentHashMap<Keyword, Keyword[]>();
+    // The keys reached by a notified key and the global listeners of them
+    private static final ConcurrentHashMap<Keyword, Keyword[]> keys = new ConcurrentHashMap<Keyword, Keyword[]>();
+    private static final ConcurrentHashMap<Keyword, EventFn[]> listeners = new ConcurrentHashMap<Keyword, EventFn[]>();
+    // Incremented by every change, an entry computed while it changed is not kept
+    private static final AtomicLong version = new AtomicLong();
+
+    private EventIndex() {
+    }
+
+    /**
+     * Returns the keys reached by a notify of key, key first
+     *
+     * @param key The key notified
+     */
+    static Keyword[] keys(Keyword key) {
+        Keyword[] reached = EventIndex.keys.get(key);
+        if (reached == null) {
+            long seen = EventIndex.version.get();
+            reached = EventIndex.resolve(key);
+            EventIndex.keep(EventIndex.keys, key, reached, seen);
+        }
+        return reached;
+    }
+
+    /**
+     * Returns the global listeners reached by a notify of key, in the order of the keys they listen to
+     *
+     * @param key    The key notified
+     * @param global The global listeners of each key
+     */
+    static EventFn[] listeners(Keyword key, Map<Keyword, EventFn[]> global) {
+        EventFn[] reached = EventIndex.listeners.get(key);
+        if (reached == null) {
+            long seen = EventIndex.version.get();
+            Keyword[] reachedKeys = EventIndex.keys(key);
+            if (reachedKeys.length == 1) {
+                reached = global.get(key);
+            } else {
+                ArrayList<EventFn> all = new ArrayList<EventFn>();
+                for (Keyword k : reachedKeys) {
+                    EventFn[] fns = global.get(k);
+                    if (fns != null) {
+                        all.addAll(Arrays.asList(fns));
+                    }
+                }
+                reached = all.toArray(new EventFn[all.size()]);
+            }
+            if (reached == null || reached.length == 0) {
+                reached = NOLISTENERS;
+            }
+            EventIndex.keep(EventIndex.listeners, key, reached, seen);
+        }
+        return reached;
+    }
+
+    /**
+     * Keeps a computed entry unless the index is full or changed since seen, an entry kept by a notify racing
+     * with the change is removed again by the notify once it sees the new version
+     */
+    private static <T> void keep(ConcurrentHashMap<Keyword, T> index, Keyword key, T entry, long seen) {
+        if (index.size() >= SIZE) {
+            return;
+        }
+        index.putIfAbsent(key, entry);
+        if (EventIndex.version.get() != seen) {
+            index.remove(key, entry);
+        }
+    }
+
+    /**
+     * Drops the kept listeners, called after a global listener was added or removed
+     */
+    static void invalidate() {
+        EventIndex.version.incrementAndGet();
+        EventIndex.listeners.clear();
+    }
+
+    private static Keyword[] resolve(Keyword key) {
+        // The key and the keys it derives from, each followed by the wildcard of its namespace
+        LinkedHashSet<Keyword> reached = new LinkedHashSet<Keyword>();
+        for (Keyword k : EventIndex.ancestors(key)) {
+            reached.add(k);
+            String ns = k.getNamespace();
+            if (ns != null) {
+                reached.add(Keyword.intern(ns, "*"));
+            }
+        }
+        reached.add(WILDCARD);
+        return reached.toArray(new Keyword[reached.size()]);
+    }
+
+    /**
+     * Returns key and the keys it derives from, breadth first
+     */
+    private static ArrayList<Keyword> ancestors(Keyword key) {
+        ArrayList<Keyword> ancestors = new ArrayList<Keyword>();
+        ancestors.add(key);
+        for (int i = 0; i < ancestors.size(); i++) {
+            Keyword[] ps = EventIndex.parents.get(ancestors.get(i));
+            if (ps != null) {
+                for (Keyword p : ps) {
+                    if ( ! ancestors.contains(p)) {
+                        ancestors.add(p);
+                    }
+                }
+            }
+        }
+        return ancestors;
+    }
+
+    /**
+     * Makes a notify of child also reach the listeners of parent and of the keys parent derives from
+     *
+     * @param child  The derived key
+     * @param parent The key derived from
+     */
+    static void derive(Keyword child, Keyword parent) {
+        if (child == null || parent == null) {
+            throw new IllegalArgumentException("Only keywords can be derived");
+        }
+        synchronized (EventIndex.parents) {
+            if (EventIndex.ancestors(parent).contains(child)) {
+                throw new IllegalArgumentException("Cyclic derivation: " + parent + " has " + child + " as ancestor");
+            }
+            Keyword[] ps = EventIndex.parents.get(child);
+            if (ps == null) {
+                EventIndex.parents.put(child, new Keyword[] {parent});
+            } else if ( ! Arrays.asList(ps).contains(parent)) {
+                Keyword[] added = Arrays.copyOf(ps, ps.length + 1);
+                added[ps.length] = parent;
+                EventIndex.parents.put(child, added);
+            }
+            EventIndex.hierarchyChanged();
+        }
+    }
+
+    /**
+     * Removes the derivation of child from parent, if any
+     *
+     * @param child  The derived key
+     * @param parent The key derived from
+     */
+    static void underive(Keyword child, Keyword parent) {
+        synchronized (EventIndex.parents) {
+            Keyword[] ps = EventIndex.parents.get(child);
+            if (ps == null || ! Arrays.asList(ps).contains(parent)) {
+                return;
+            }
+            ArrayList<Keyword> rest = new ArrayList<Keyword>(Arrays.asList(ps));
+            rest.remove(parent);
+            if (rest.isEmpty()) {
+                EventIndex.parents.remove(child);
+            } else {
+                EventIndex.parents.put(child, rest.toArray(new Keyword[rest.size()]));
+            }
+            EventIndex.hierarchyChanged();
+        }
+    }
+
+    private static void hierarchyChanged() {
+        EventIndex.version.incrementAndGet();
+        EventIndex.keys.clear();
+        EventIndex.listeners.clear();
+    }
+}
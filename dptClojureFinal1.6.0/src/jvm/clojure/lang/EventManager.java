@@ -2,8 +2,10 @@
 package clojure.lang;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Event manager for generic and transactional events
@@ -16,8 +18,11 @@ public class EventManager {
 
     /**
      * Stores global events that is shared by all threads despite what thread crated them
+     *
+     * The listeners of a key are an array that is replaced rather than changed, so notify runs them without a
+     * lock while other threads listen and dismiss, and threads using different keys never wait for each other
      */
-    private final static HashMap<Keyword, ArrayList<EventFn>> globalEvents = new HashMap<Keyword, ArrayList<EventFn>>();
+    private final static ConcurrentHashMap<Keyword, EventFn[]> globalEvents = new ConcurrentHashMap<Keyword, EventFn[]>();
 
     /**
      * Stores local events that only is available for the thread that created them
@@ -57,7 +62,7 @@ public class EventManager {
             eventListeners.put(key, new ArrayList<EventFn>());
         }
 
-        EventFn eventFn = new EventFn(fn, args, deleteAfterRun);
+        EventFn eventFn = new EventFn(key, fn, args, deleteAfterRun);
         eventListeners.get(key).add(eventFn);
 
         return eventFn;
@@ -73,7 +78,7 @@ public class EventManager {
         // Throws exception if no transaction is running
         LockingTransaction transaction = LockingTransaction.getEx();
         Map<Keyword, ArrayList<EventFn>> eventListeners = transaction.getEventListeners();
-        EventManager.runEvents(key, eventListeners, context);
+        EventManager.runReachedEvents(key, eventListeners, context);
     }
 
     /**
@@ -88,30 +93,79 @@ public class EventManager {
      * @return               Will return a EventFn object to be used for eventual removal
      */
     public static EventFn listen(Keyword key, IFn fn, ISeq args, boolean threadLocal, boolean deleteAfterRun) {
+        return EventManager.listen(key, fn, args, threadLocal, deleteAfterRun, false);
+    }
+
+    /**
+     * Listen for a specific event to be notified given a Keyword, optionally delivered asynchronously
+     *
+     * @param key            The keyword to identify the event
+     * @param fn             Function to be executed
+     * @param args           Arguments for the function or null for function without arguments
+     * @param threadLocal    Whether or not the event should be thread local or not
+     * @param deleteAfterRun Whether or not the delete the event after it was run once
+     * @param async          Whether or not notify runs the event on the executor of key, see EventDispatcher
+     *
+     * @return               Will return a EventFn object to be used for eventual removal
+     */
+    public static EventFn listen(Keyword key, IFn fn, ISeq args, boolean threadLocal, boolean deleteAfterRun,
+                                 boolean async) {
         if (LockingTransaction.isRunning()) {
             throw new IllegalStateException("Listen is not allowed in a transaction, use stmListen");
         }
 
-        // Determines if the thunk should be added as as global or thread local event listener
-        Map<Keyword, ArrayList<EventFn>> eventMap =
-            (threadLocal) ? EventManager.threadlocalEvents.get() : EventManager.globalEvents;
+        // Create the EventFn for the given fn and args, then add the EventFn as a global or thread local listener
+        EventFn listenerEventFn = new EventFn(key, fn, args, deleteAfterRun, async);
 
-        // Create the EventFn for the given fn and args, then add the EventFn to the list
-        EventFn listenerEventFn = new EventFn(fn, args, deleteAfterRun);
-
-        // Check if the HashMap has a key for the given Keyword
-        synchronized (eventMap) {
+        if (threadLocal) {
+            Map<Keyword, ArrayList<EventFn>> eventMap = EventManager.threadlocalEvents.get();
             if ( ! eventMap.containsKey(key)) {
                 eventMap.put(key, new ArrayList<EventFn>());
             }
-
             eventMap.get(key).add(listenerEventFn);
+        } else {
+            EventManager.addGlobal(key, listenerEventFn);
         }
 
         // Return the EventFn for easy future removal for the developer
         return listenerEventFn;
     }
 
+    /**
+     * Listen for a specific event to be notified given a Keyword, the function is run with a vector of the
+     * contexts of the notifies as context once maxSize notifies happened or maxDelayMs milliseconds after the
+     * first of them, see EventBatch
+     *
+     * @param key         The keyword to identify the event
+     * @param fn          Function to be executed
+     * @param args        Arguments for the function or null for function without arguments
+     * @param threadLocal Whether or not the event should be thread local or not
+     * @param maxSize     The number of notifies that fill a batch, 0 for no limit
+     * @param maxDelayMs  The milliseconds a batch is filled before it is delivered, 0 for no limit
+     *
+     * @return            Will return a EventFn object to be used for eventual removal
+     */
+    public static EventFn listenBatched(Keyword key, IFn fn, ISeq args, boolean threadLocal, int maxSize,
+                                        long maxDelayMs) {
+        if (LockingTransaction.isRunning()) {
+            throw new IllegalStateException("Listen is not allowed in a transaction, use stmListen");
+        }
+
+        EventFn listenerEventFn = new EventFn(key, fn, args, new EventBatch(maxSize, maxDelayMs));
+
+        if (threadLocal) {
+            Map<Keyword, ArrayList<EventFn>> eventMap = EventManager.threadlocalEvents.get();
+            if ( ! eventMap.containsKey(key)) {
+                eventMap.put(key, new ArrayList<EventFn>());
+            }
+            eventMap.get(key).add(listenerEventFn);
+        } else {
+            EventManager.addGlobal(key, listenerEventFn);
+        }
+
+        return listenerEventFn;
+    }
+
     /**
      * Notifies all event listeners waiting for the keyword given as key
      *
@@ -121,10 +175,80 @@ public class EventManager {
         if (LockingTransaction.isRunning()) {
             throw new IllegalStateException("Notify is not allowed in a transaction, use stmNotify");
         }
-        synchronized (EventManager.globalEvents) {
-            EventManager.runEvents(key, EventManager.globalEvents, context);
+        EventFn[] listeners = EventIndex.listeners(key, EventManager.globalEvents);
+        if (listeners.length > 0) {
+            EventManager.runGlobalEvents(key, listeners, context);
         }
-        EventManager.runEvents(key, EventManager.threadlocalEvents.get(), context);
+        EventManager.runReachedEvents(key, EventManager.threadlocalEvents.get(), context);
+    }
+
+    /**
+     * Notifies all event listeners waiting for the keyword given as key without running them on the calling
+     * thread, they are run on the executor of key as configured by EventDispatcher
+     *
+     * @param key The key indicating which events to notify
+     * @param context Data given from notify
+     */
+    public static void notifyAsync(Keyword key, Object context) {
+        if (LockingTransaction.isRunning()) {
+            throw new IllegalStateException("Notify is not allowed in a transaction, use stmNotify");
+        }
+        EventFn[] listeners = EventIndex.listeners(key, EventManager.globalEvents);
+        HashMap<Keyword, ArrayList<EventFn>> localEvents = EventManager.threadlocalEvents.get();
+        if ( ! localEvents.isEmpty()) {
+            ArrayList<EventFn> all = null;
+            for (Keyword reached : EventIndex.keys(key)) {
+                ArrayList<EventFn> local = localEvents.get(reached);
+                if (local == null || local.isEmpty()) {
+                    continue;
+                }
+                if (all == null) {
+                    all = new ArrayList<EventFn>(Arrays.asList(listeners));
+                }
+                all.addAll(local);
+                // Thread local listeners can only be removed by their own thread
+                for (int i = local.size() - 1; i >= 0; i--) {
+                    if (local.get(i).deleteAfterRun()) {
+                        local.remove(i);
+                    }
+                }
+            }
+            if (all != null) {
+                listeners = all.toArray(new EventFn[all.size()]);
+            }
+        }
+        if (listeners.length > 0) {
+            listeners = EventManager.addToBatches(listeners, context);
+        }
+        if (listeners != null && listeners.length > 0) {
+            EventDispatcher.dispatch(key, listeners, context);
+        }
+    }
+
+    /**
+     * Adds context to the batches of the batched listeners, returns the other listeners or null if there are none
+     */
+    private static EventFn[] addToBatches(EventFn[] listeners, Object context) {
+        int batched = 0;
+        for (EventFn fn : listeners) {
+            if (fn.batch() != null) {
+                fn.batch().add(fn, context);
+                batched++;
+            }
+        }
+        if (batched == 0) {
+            return listeners;
+        } else if (batched == listeners.length) {
+            return null;
+        }
+        EventFn[] rest = new EventFn[listeners.length - batched];
+        int i = 0;
+        for (EventFn fn : listeners) {
+            if (fn.batch() == null) {
+                rest[i++] = fn;
+            }
+        }
+        return rest;
     }
 
     /**
@@ -144,11 +268,7 @@ public class EventManager {
         }
 
         if (dismissFrom == DISMISSALL || dismissFrom == DISMISSGLOBAL) {
-            synchronized (EventManager.globalEvents) {
-                if (EventManager.globalEvents.containsKey(key)) {
-                    EventManager.globalEvents.get(key).remove(eventFn);
-                }
-            }
+            EventManager.removeGlobal(key, eventFn);
         }
 
         if (dismissFrom == DISMISSALL || dismissFrom == DISMISSLOCAL) {
@@ -156,6 +276,31 @@ public class EventManager {
                 EventManager.threadlocalEvents.get().get(key).remove(eventFn);
             }
         }
+
+        // The contexts a batched listener got so far are still delivered
+        if (eventFn != null && eventFn.batch() != null) {
+            eventFn.batch().flush(eventFn);
+        }
+    }
+
+    /**
+     * Makes notifies of child also notify the events of parent and of the keys parent is derived from
+     *
+     * @param child  The key derived from parent
+     * @param parent The key child is derived from
+     */
+    public static void derive(Keyword child, Keyword parent) {
+        EventIndex.derive(child, parent);
+    }
+
+    /**
+     * Removes the derivation of child from parent made by derive
+     *
+     * @param child  The key derived from parent
+     * @param parent The key child is derived from
+     */
+    public static void underive(Keyword child, Keyword parent) {
+        EventIndex.underive(child, parent);
     }
 
     /**
@@ -167,6 +312,151 @@ public class EventManager {
         return EventManager.context.get();
     }
 
+    /**
+     * Adds a global listener to key by replacing the array of listeners of key
+     */
+    private static void addGlobal(Keyword key, EventFn eventFn) {
+        while (true) {
+            EventFn[] listeners = EventManager.globalEvents.get(key);
+            if (listeners == null) {
+                if (EventManager.globalEvents.putIfAbsent(key, new EventFn[] {eventFn}) == null) {
+                    EventIndex.invalidate();
+                    return;
+                }
+            } else {
+                EventFn[] added = Arrays.copyOf(listeners, listeners.length + 1);
+                added[listeners.length] = eventFn;
+                if (EventManager.globalEvents.replace(key, listeners, added)) {
+                    EventIndex.invalidate();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes a global listener from key by replacing the array of listeners of key, the key is removed with
+     * its last listener
+     */
+    static void removeGlobal(Keyword key, EventFn eventFn) {
+        while (true) {
+            EventFn[] listeners = EventManager.globalEvents.get(key);
+            if (listeners == null) {
+                return;
+            }
+            int index = -1;
+            for (int i = 0; i < listeners.length; i++) {
+                if (listeners[i] == eventFn) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return;
+            }
+            if (listeners.length == 1) {
+                if (EventManager.globalEvents.remove(key, listeners)) {
+                    EventIndex.invalidate();
+                    return;
+                }
+            } else {
+                EventFn[] removed = new EventFn[listeners.length - 1];
+                System.arraycopy(listeners, 0, removed, 0, index);
+                System.arraycopy(listeners, index + 1, removed, index, listeners.length - index - 1);
+                if (EventManager.globalEvents.replace(key, listeners, removed)) {
+                    EventIndex.invalidate();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Run the global listeners of key that were registered when notify was called, without holding any lock
+     *
+     * @param key       The key notified
+     * @param listeners The listeners of key
+     * @param context   Data given from notify
+     */
+    private static void runGlobalEvents(Keyword key, EventFn[] listeners, Object context) {
+        int async = 0;
+        EventManager.context.set(context);
+        try {
+            for (EventFn fn : listeners) {
+                // Batched listeners are delivered by their batch
+                if (fn.batch() != null) {
+                    fn.batch().add(fn, context);
+                    continue;
+                }
+                // Async listeners are claimed when their delivery runs
+                if (fn.async()) {
+                    async++;
+                    continue;
+                }
+                // Listeners run once are removed before they run, so only one notify runs them
+                if ( ! fn.claim()) {
+                    continue;
+                }
+                if (fn.deleteAfterRun()) {
+                    EventManager.removeGlobal(fn.key(), fn);
+                }
+                EventManager.run(fn);
+            }
+        } finally {
+            // Prevents the context from leaking outside the scope of the event
+            EventManager.context.set(null);
+        }
+        if (async > 0) {
+            EventFn[] delivered = new EventFn[async];
+            int i = 0;
+            for (EventFn fn : listeners) {
+                if (fn.async()) {
+                    delivered[i++] = fn;
+                }
+            }
+            EventDispatcher.dispatch(key, delivered, context);
+        }
+    }
+
+    /**
+     * Runs fn with context as the context of the event, the context of the calling thread is restored after
+     */
+    static void run(EventFn fn, Object context) {
+        Object previous = EventManager.context.get();
+        EventManager.context.set(context);
+        try {
+            EventManager.run(fn);
+        } finally {
+            EventManager.context.set(previous);
+        }
+    }
+
+    private static void run(EventFn fn) {
+        if (STMStats.ENABLED) {
+            long start = System.nanoTime();
+            fn.run();
+            STMStats.listenerNanos.record(System.nanoTime() - start);
+        } else {
+            fn.run();
+        }
+    }
+
+    /**
+     * Run the events found in events for the keys reached by a notify of key, see EventIndex
+     *
+     * @param key     The key notified
+     * @param events  The events to look through
+     * @param context Data given from notify
+     */
+    private static void runReachedEvents(Keyword key, Map<Keyword, ArrayList<EventFn>> events, Object context) {
+        if (events.isEmpty()) {
+            return;
+        }
+        for (Keyword reached : EventIndex.keys(key)) {
+            EventManager.runEvents(reached, events, context);
+        }
+    }
+
     /**
      * Run all events found for the given key in events
      *
@@ -179,12 +469,22 @@ public class EventManager {
         if (events.containsKey(key)) {
             // A delete list is used to prevent concurrent modification exceptions
             ArrayList<EventFn> toDeleteAfterRun = new ArrayList<EventFn>();
+            ArrayList<EventFn> async = null;
 
             // Set context
             EventManager.context.set(context);
 
             for (EventFn fn : events.get(key)) {
-                fn.run();
+                if (fn.batch() != null) {
+                    fn.batch().add(fn, context);
+                } else if (fn.async()) {
+                    if (async == null) {
+                        async = new ArrayList<EventFn>();
+                    }
+                    async.add(fn);
+                } else {
+                    EventManager.run(fn);
+                }
 
                 if (fn.deleteAfterRun()) {
                     toDeleteAfterRun.add(fn);
@@ -193,6 +493,9 @@ public class EventManager {
             // Prevents the context from leaking outside the scope of the event
             EventManager.context.set(null);
             events.get(key).removeAll(toDeleteAfterRun);
+            if (async != null) {
+                EventDispatcher.dispatch(key, async.toArray(new EventFn[async.size()]), context);
+            }
         }
     }
 }
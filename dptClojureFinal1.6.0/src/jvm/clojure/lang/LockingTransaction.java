@@ -14,12 +14,11 @@
 package clojure.lang;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
 
 @SuppressWarnings({"SynchronizeOnNonFinalField"})
 public class LockingTransaction{
@@ -41,6 +40,19 @@ public class LockingTransaction{
 	public static final Keyword ONCOMMITKEYWORD = Keyword.intern("on-commit");
 	public static final Keyword AFTERCOMMITKEYWORD = Keyword.intern("after-commit");
 
+	// Transaction option keywords used by dosync-with
+	public static final Keyword CONTENTIONMANAGERKEYWORD = Keyword.intern("contention-manager");
+	public static final Keyword READONLYKEYWORD = Keyword.intern("read-only");
+	public static final Keyword SNAPSHOTKEYWORD = Keyword.intern("snapshot");
+	public static final Keyword ENSUREKEYWORD = Keyword.intern("ensure");
+	public static final Keyword OPTIMISTICKEYWORD = Keyword.intern("optimistic");
+	public static final Keyword LOCKKEYWORD = Keyword.intern("lock");
+	public static final Keyword IRREVOCABLEKEYWORD = Keyword.intern("irrevocable");
+	public static final Keyword IRREVOCABLEAFTERKEYWORD = Keyword.intern("irrevocable-after");
+	public static final Keyword EXECUTORKEYWORD = Keyword.intern("executor");
+	public static final Keyword INLINEKEYWORD = Keyword.intern("inline");
+	public static final Keyword BACKGROUNDKEYWORD = Keyword.intern("background");
+
 	// The actual transaction in a local thread
 	final static ThreadLocal<LockingTransaction> transaction = new ThreadLocal<LockingTransaction>();
 
@@ -52,18 +64,65 @@ public class LockingTransaction{
 	static class AbortException extends Exception{
 	}
 
-	// The info class, holds state, starting point and latch
-	// Latch is "A synchronization aid that allows one or more threads to wait until a set of operations being performed in other threads completes." http://docs.oracle.com/javase/7/docs/api/java/util/concurrent/CountDownLatch.html
+	// The info class, holds state, starting point and attempt of a transaction
+	// Refs point to the info of the attempt owning them, other transactions check its status, kill it or wait for it to stop
+	// A transaction reuses its info for the next attempt once no ref points to it, the fields are only written before
+	// the info is published to a ref under the ref's lock
 	public static class Info{
 		final AtomicInteger status;
-		final long startPoint;
-		final CountDownLatch latch;
+		long startPoint;
+		// Start time and attempt number of the transaction, used by contention managers
+		long startTime;
+		int attempt;
+		// Id of the thread running the transaction, breaks ties between transactions started at the same point
+		long owner;
+		// Number of refs opened by the transaction across all attempts, only written by the owning thread
+		int karma;
+		// An irrevocable transaction is never barged by other transactions
+		boolean irrevocable;
+		// Number of attempts with this info that have stopped, lets a waiter see the stop after the info is reused
+		private int stops;
 
 		// Initialize
 		public Info(int status, long startPoint){
+			this(status, startPoint, System.nanoTime(), 0, 0);
+		}
+
+		public Info(int status, long startPoint, long startTime, int attempt, int karma){
+			this(status, startPoint, startTime, attempt, karma, false);
+		}
+
+		public Info(int status, long startPoint, long startTime, int attempt, int karma, boolean irrevocable){
 			this.status = new AtomicInteger(status);
+			reset(status, startPoint, startTime, attempt, karma, irrevocable);
+		}
+
+		// Prepare the info for a new attempt
+		void reset(int status, long startPoint, long startTime, int attempt, int karma, boolean irrevocable){
+			this.irrevocable = irrevocable;
 			this.startPoint = startPoint;
-			this.latch = new CountDownLatch(1);
+			this.startTime = startTime;
+			this.attempt = attempt;
+			this.karma = karma;
+			this.owner = Thread.currentThread().getId();
+			this.status.set(status);
+		}
+
+		// Kill the attempt if it is running and not yet committing, returns false if it was not running
+		boolean kill(){
+			if(!status.compareAndSet(RUNNING, KILLED))
+				return false;
+			synchronized(this) {
+				notifyAll();
+			}
+			return true;
+		}
+
+		// Set the final status of the attempt and wake the transactions waiting for it to stop
+		synchronized void stopped(int status){
+			this.status.set(status);
+			stops++;
+			notifyAll();
 		}
 
 		// Check if the transaction is running, based on the status of the transaction
@@ -71,82 +130,330 @@ public class LockingTransaction{
 			int s = status.get();
 			return s == RUNNING || s == COMMITTING;
 		}
+
+		public long getStartPoint(){
+			return startPoint;
+		}
+
+		// Check if the transaction started before other, the clock can give several transactions the same start point
+		public boolean olderThan(Info other){
+			return startPoint < other.startPoint || (startPoint == other.startPoint && owner < other.owner);
+		}
+
+		public long getStartTime(){
+			return startTime;
+		}
+
+		public int getAttempt(){
+			return attempt;
+		}
+
+		public int getKarma(){
+			return karma;
+		}
+
+		public boolean isIrrevocable(){
+			return irrevocable;
+		}
+
+		// Block until the attempt of the transaction has stopped or was killed
+		public synchronized void awaitStop() throws InterruptedException{
+			int s = stops;
+			while(stops == s && running())
+				wait();
+		}
+
+		// Block until the attempt of the transaction has stopped or was killed, or the timeout elapsed
+		public synchronized boolean awaitStop(long timeout, TimeUnit unit) throws InterruptedException{
+			int s = stops;
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			while(stops == s && running()) {
+				long left = deadline - System.nanoTime();
+				if(left <= 0)
+					return false;
+				TimeUnit.NANOSECONDS.timedWait(this, left);
+			}
+			return true;
+		}
 	}
 
-	// A commute function
-	static class CFn {
-		final IFn fn;
-		final ISeq args;
+	// Undo log of an or-else alternative, it holds what is needed to restore the transaction as it was before the alternative
+	static class Nested {
+		// Marks a ref that had no value in vals before the alternative
+		static final Object NOVAL = new Object();
+
+		final Nested parent;
+		// The values in vals before the alternative first wrote each ref
+		final HashMap<Ref, Object> savedVals = new HashMap<Ref, Object>();
+		// The first unevaluated commute of each lazily commuted ref the alternative evaluated
+		final HashMap<Ref, Object> savedLazyCommutes = new HashMap<Ref, Object>();
+		// The amounts added to counters before the alternative first added to each, and the counters it ensured
+		final HashMap<Ref, Object> savedCounterDeltas = new HashMap<Ref, Object>();
+		final ArrayList<Ref> addedEnsuredCounters = new ArrayList<Ref>();
+		// The length of the commute log before the alternative, and the refs the alternative commuted first
+		final int commuteCount;
+		final ArrayList<Ref> addedCommutes = new ArrayList<Ref>();
+		// Refs added to sets and ensures by the alternative
+		final ArrayList<Ref> addedSets = new ArrayList<Ref>();
+		final ArrayList<Ref> addedEnsures = new ArrayList<Ref>();
+		final ArrayList<Ref> addedValidated = new ArrayList<Ref>();
+		// Refs ensured before the alternative which the alternative released to write them
+		final ArrayList<Ref> releasedEnsures = new ArrayList<Ref>();
+		// The number of agent actions and event listeners before the alternative
+		final int actionsSize;
+		final HashMap<Keyword, Integer> listenerSizes = new HashMap<Keyword, Integer>();
+
+		Nested(Nested parent, int actionsSize, int commuteCount, HashMap<Keyword, ArrayList<EventFn>> eventListeners){
+			this.parent = parent;
+			this.actionsSize = actionsSize;
+			this.commuteCount = commuteCount;
+			for(Map.Entry<Keyword, ArrayList<EventFn>> e : eventListeners.entrySet()) {
+				listenerSizes.put(e.getKey(), e.getValue().size());
+			}
+		}
 
-		public CFn(IFn fn, ISeq args){
-			this.fn = fn;
-			this.args = args;
+		// Make the effects of a successful alternative part of the enclosing alternative
+		void mergeIntoParent(){
+			if(parent == null)
+				return;
+			for(Map.Entry<Ref, Object> e : savedVals.entrySet()) {
+				if(!parent.savedVals.containsKey(e.getKey()))
+					parent.savedVals.put(e.getKey(), e.getValue());
+			}
+			for(Map.Entry<Ref, Object> e : savedLazyCommutes.entrySet()) {
+				if(!parent.savedLazyCommutes.containsKey(e.getKey()))
+					parent.savedLazyCommutes.put(e.getKey(), e.getValue());
+			}
+			for(Map.Entry<Ref, Object> e : savedCounterDeltas.entrySet()) {
+				if(!parent.savedCounterDeltas.containsKey(e.getKey()))
+					parent.savedCounterDeltas.put(e.getKey(), e.getValue());
+			}
+			parent.addedEnsuredCounters.addAll(addedEnsuredCounters);
+			parent.addedCommutes.addAll(addedCommutes);
+			parent.addedSets.addAll(addedSets);
+			parent.addedEnsures.addAll(addedEnsures);
+			parent.addedValidated.addAll(addedValidated);
+			parent.releasedEnsures.addAll(releasedEnsures);
 		}
 	}
 
 	// Total order on transactions
-	// Transactions will consume a point for init, for each retry, and on commit if writing
-	final private static AtomicLong lastPoint = new AtomicLong();
+	// Depending on the clock, transactions consume a point for init, for each retry, and on commit if writing
+	final static STMClock clock = STMClock.create(System.getProperty("clojure.stm.clock", "counter"));
 
 	void getReadPoint(){
-		readPoint = lastPoint.incrementAndGet();
+		readPoint = clock.readPoint();
 	}
 
 	long getCommitPoint(){
-		return lastPoint.incrementAndGet();
+		return clock.commitPoint();
 	}
 
     void stop(int status){
         if(info != null) {
-            synchronized(info) {
-                info.status.set(status);
-                info.latch.countDown();
+            // The info of a read only transaction is never published to refs, so it is left running for reuse
+            if(info != readOnlyInfo) {
+                karma = info.karma;
+                info.stopped(status);
+                // The next attempt reuses the info if no ref points to it anymore
+                spareInfo = releaseInfo() ? info : null;
             }
             info = null;
             vals.clear();
             sets.clear();
+            owned.clear();
             commutes.clear();
+            lazyCommutes.clear();
+            validated.clear();
+            counterDeltas.clear();
+            ensuredCounters.clear();
+            Arrays.fill(commuteFns, 0, commuteCount, null);
+            Arrays.fill(commuteArgs, 0, commuteCount, null);
+            Arrays.fill(commuteRefs, 0, commuteCount, null);
+            commuteCount = 0;
             //actions.clear();
         }
     }
 
+	// Clear the refs still pointing to the info of the stopped attempt, returns false if some could not be cleared
+	private boolean releaseInfo(){
+		if(infoLeaked) {
+			infoLeaked = false;
+			return false;
+		}
+		return releaseInfo(sets) && releaseInfo(owned);
+	}
+
+	private boolean releaseInfo(STMRefTable refs){
+		for(int k = 0; k < refs.capacity(); k++) {
+			Ref ref = refs.keyAt(k);
+			// Once another transaction has taken the ref it never points to our info again
+			if(ref == null || ref.tinfo != info)
+				continue;
+			if(!ref.lock.writeLock().tryLock())
+				return false;
+			try {
+				if(ref.tinfo == info)
+					ref.tinfo = null;
+			} finally {
+				ref.lock.writeLock().unlock();
+			}
+		}
+		return true;
+	}
+
 	// LockingTransaction class properties
 	Info info;
 	long readPoint;
 	long startPoint;
 	long startTime;
+	int karma;
 
 	final RetryEx retryex = new RetryEx();
 	final ArrayList<Agent.Action> actions = new ArrayList<Agent.Action>();
+	// The per attempt state is kept in tables that are cleared and reused, so a small transaction allocates nothing
 	// All transaction specific values to refs
-	final HashMap<Ref, Object> vals = new HashMap<Ref, Object>();
+	final STMRefTable vals = new STMRefTable();
 	// Set of all refs, not the values
-	final HashSet<Ref> sets = new HashSet<Ref>();
+	final STMRefTable sets = new STMRefTable();
     // Set of all refs we have read
-    final HashSet<Ref> gets = new HashSet<Ref>();
-	// List of commutes, each commute consists of a ref and a commute function CFn
-	final TreeMap<Ref, ArrayList<CFn>> commutes = new TreeMap<Ref, ArrayList<CFn>>();
+    final STMRefTable gets = new STMRefTable();
+	// Set of commuted refs, and the log of commutes in call order, each a ref, a function and its arguments
+	final STMRefTable commutes = new STMRefTable();
+	private Ref[] commuteRefs = new Ref[8];
+	private IFn[] commuteFns = new IFn[8];
+	private ISeq[] commuteArgs = new ISeq[8];
+	private int commuteCount = 0;
+	// Refs with commutes that are not evaluated yet, mapped to the index in the log of the first of them
+	final STMRefTable lazyCommutes = new STMRefTable();
+	// Amounts added to counters by the attempt, each a long[1], and the counters ensured
+	final STMRefTable counterDeltas = new STMRefTable();
+	final STMRefTable ensuredCounters = new STMRefTable();
+	// Counters whose cells the attempt claimed, mapped to the claimed cell or to -1 for all cells
+	final STMRefTable claimedCounters = new STMRefTable();
     // Holds a list of all read locks we have on refs
-	final HashSet<Ref> ensures = new HashSet<Ref>();
-    // Static list for holding all blocking behaviors across all threads
-    private final static Collection<STMBlockingBehavior> blockingBehaviors =
-        Collections.newSetFromMap(new ConcurrentHashMap<STMBlockingBehavior, Boolean>());
+	final STMRefTable ensures = new STMRefTable();
+	// Refs ensured optimistically, they are only read locked and checked for newer versions at commit
+	final STMRefTable validated = new STMRefTable();
+	// Refs to write lock at commit sorted by id, the refs we have write lock on, and the watches to notify
+	private final ArrayList<Ref> writeOrder = new ArrayList<Ref>();
+	private final ArrayList<Ref> locked = new ArrayList<Ref>();
+	private final ArrayList<Notify> notify = new ArrayList<Notify>();
+	// Info of a stopped attempt no ref points to, reused by the next attempt
+	private Info spareInfo = null;
+	// Set when a ref might still point to info after the attempt, the info is then not reused
+	private boolean infoLeaked = false;
+	// Whether run is on the stack, a transaction started by its side effects then needs a transaction of its own
+	private boolean active = false;
     // Holds information about how to unblock if the transaction is blocked by retry
     private STMBlockingBehavior blockingBehavior = null;
+    // Blocking behaviors waiting on the refs written by the committing transaction
+    private final HashSet<STMBlockingBehavior> changedBlockingBehaviors = new HashSet<STMBlockingBehavior>();
 	// Holds all event listeners for this transaction
 	private final HashMap<Keyword, ArrayList<EventFn>> eventListeners = new HashMap<Keyword, ArrayList<EventFn>>();
-	// Boolean to enable orElse semantics
-	private boolean orElseRunning = false;
+	// Undo log of the innermost running or-else alternative, null outside or-else
+	private Nested nested = null;
+	// Contention manager used by all transactions not given one explicitly
+	private static volatile STMContentionManager defaultContentionManager = new STMContentionManagerBarge();
+	// Contention manager of this transaction
+	private STMContentionManager contentionManager = null;
+	// Whether the transaction is declared read only, writes are then rejected
+	private boolean readOnly = false;
+	// Info reused by every attempt of a declared read only transaction
+	private Info readOnlyInfo = null;
+	// Whether the read only transaction pins its read point, so the versions it reads are kept until it ends
+	private boolean snapshot = false;
+	private STMHistory.Pin pin = null;
+	// Only one transaction at a time can run irrevocably, it holds this token during its attempt
+	private static final Semaphore irrevocableToken = new Semaphore(1, true);
+	// Number of conflict retries after which transactions run irrevocably, 0 disables escalation
+	private static final int defaultIrrevocableAfter = Integer.getInteger("clojure.stm.irrevocableAfter", 0);
+	// Whether ensure records the ref and validates it at commit instead of read locking it until the commit
+	private static final boolean defaultOptimisticEnsure = optimisticEnsure(System.getProperty("clojure.stm.ensure"));
+	private boolean optimisticEnsure = false;
+	// Whether watches, retry wakeups and after-commit listeners run on STMAfterCommit instead of before run returns
+	private static final boolean defaultBackgroundAfterCommit =
+			backgroundAfterCommit(System.getProperty("clojure.stm.afterCommit"));
+	private boolean backgroundAfterCommit = false;
+	// Whether the transaction is declared irrevocable, and the escalation threshold of this transaction
+	private boolean irrevocableDeclared = false;
+	private int irrevocableAfter = 0;
+	// Whether the current attempt holds the irrevocable token
+	private boolean irrevocable = false;
+	// Flight recorder event of the blocking retry, committed when the transaction stops blocking
+	private Object retryEvent = null;
+	// Future of the asynchronous transaction being run, a blocking retry then parks it instead of waiting
+	private STMFuture future = null;
+	// Refs read or ensured by an irrevocable attempt, it owns them like written refs so they cannot change under it
+	final STMRefTable owned = new STMRefTable();
+
+	// Cause of the retry exception last thrown, one of the abort causes of STMStats
+	private int retryCause = STMStats.WRITE_CONFLICT;
+	// The ref that made the attempt retry, null if the retry was not caused by a ref
+	private Ref conflictRef = null;
+	// Whether this transaction is sampled by STMProfiler, and the counts of its events for the call site
+	private boolean profiled = false;
+	private long[] siteCounts = null;
+
+	// Record why the attempt is retried and return the retry exception to throw
+	private RetryEx retry(int cause){
+		retryCause = cause;
+		return retryex;
+	}
+
+	// Record the ref that made the attempt retry, for the flight recorder and the profiler
+	private void conflict(Ref ref, String kind){
+		conflictRef = ref;
+		if(STMFlightRecorder.ENABLED)
+			STMFlightRecorder.conflict(startPoint, info.attempt, ref, kind);
+	}
+
+	// Add to a count of the call site of a profiled transaction
+	private void profileSite(int count, long n){
+		if(siteCounts == null)
+			siteCounts = new long[STMProfiler.COUNTS];
+		siteCounts[count] += n;
+	}
 
 	// Function to try to get a write lock on Ref ref
 	// If it cant get it, it throws the retry exception
+	// An irrevocable transaction cannot retry, so it keeps waiting for the lock
 	void tryWriteLock(Ref ref){
+		// Uncontended locks are taken without timing the wait
+		if(ref.lock.writeLock().tryLock())
+			return;
+		long start = (STMStats.ENABLED || profiled) ? System.nanoTime() : 0;
+		Object event = STMFlightRecorder.ENABLED ? STMFlightRecorder.beginLockWait() : null;
+		boolean acquired = false;
 		try {
 			// Try to wait on the lock
-			if(!ref.lock.writeLock().tryLock(LOCK_WAIT_MSECS, TimeUnit.MILLISECONDS))
-				throw retryex;
+			while(!ref.lock.writeLock().tryLock(LOCK_WAIT_MSECS, TimeUnit.MILLISECONDS)) {
+				// Only counted when the timeout makes the attempt retry, an irrevocable transaction keeps waiting
+				if(!irrevocable) {
+					STMStats.lockTimeouts.increment();
+					conflictRef = ref;
+					throw retry(STMStats.LOCK_TIMEOUT);
+				}
+			}
+			acquired = true;
 		} catch(InterruptedException e) {
-			throw retryex;
+			if(irrevocable)
+				throw Util.sneakyThrow(e);
+			conflictRef = ref;
+			throw retry(STMStats.LOCK_TIMEOUT);
+		} finally {
+			if(STMStats.ENABLED || profiled) {
+				long waited = System.nanoTime() - start;
+				if(STMStats.ENABLED)
+					STMStats.lockWaitNanos.record(waited);
+				if(profiled) {
+					STMProfiler.lockWait(ref, waited);
+					profileSite(STMProfiler.LOCK_WAITS, 1);
+					profileSite(STMProfiler.LOCK_WAIT_NANOS, waited);
+				}
+			}
+			if(STMFlightRecorder.ENABLED)
+				STMFlightRecorder.endLockWait(event, startPoint, info.attempt, ref, acquired);
 		}
 	}
 
@@ -163,8 +470,10 @@ public class LockingTransaction{
 			unlocked = false;
 
 			// Check if the Ref's TVal is set and the point of the TVal is newer than the point of the transaction
-			if(ref.tvals != null && ref.tvals.point > readPoint)
-				throw retryex;
+			if(ref.tvals != null && ref.tvals.point > readPoint) {
+				conflict(ref, "newer-version");
+				throw retry(STMStats.WRITE_CONFLICT);
+			}
 			// Get the transactional info of the Ref
 			Info refinfo = ref.tinfo;
 
@@ -172,11 +481,11 @@ public class LockingTransaction{
 			// Check if the ref transaction is running and not the same as the current transaction
 			if(refinfo != null && refinfo != info && refinfo.running()) {
 				// Try to barge the other transaction if it is newer than this one
-				if( ! barge(refinfo)) {
+				if( ! barge(ref, refinfo)) {
 					// If this is not possible, unlock the writelock and blockAndBail
 					ref.lock.writeLock().unlock();
 					unlocked = true;
-					return blockAndBail(refinfo);
+					return blockAndBail(ref, refinfo);
 				}
 			}
 			// Set the transaction of the Ref to this transaction
@@ -188,28 +497,74 @@ public class LockingTransaction{
 		}
 	}
 
-	private Object blockAndBail(Info refinfo){
-        // Disables block and bail when doing an or else block
-        if(this.orElseRunning) {
-            throw retryex;
+	private Object blockAndBail(Ref ref, Info refinfo){
+        // Inside or-else only the alternative is retried, so the transaction must not be stopped
+        conflictRef = ref;
+        if(nested != null) {
+            throw retry(STMStats.BLOCK_AND_BAIL);
         }
 
-		// Stop prior to blocking
+		// Stop prior to blocking, the read locks are released so an irrevocable transaction is never kept waiting by us
+		Info self = info;
 		stop(RETRY);
-		try {
-			// Block the thread until the latch reaches a count of zero (0)
-			refinfo.latch.await(LOCK_WAIT_MSECS, TimeUnit.MILLISECONDS);
-		} catch(InterruptedException e) {
-			//ignore
-		}
-		throw retryex;
+		releaseEnsures();
+		// Let the contention manager decide how long to wait before retrying
+		Object event = STMFlightRecorder.ENABLED ? STMFlightRecorder.beginBlockAndBail() : null;
+		contentionManager.backoff(self, refinfo);
+		if(STMFlightRecorder.ENABLED)
+			STMFlightRecorder.endBlockAndBail(event, startPoint, self.attempt, ref, refinfo);
+		throw retry(STMStats.BLOCK_AND_BAIL);
 	}
 
 	// If a lock on a ref is held (found in ensures) then remove it from ensures and release the lock
 	private void releaseIfEnsured(Ref ref){
-		if(ensures.contains(ref)) {
-			ensures.remove(ref);
+		if(ensures.remove(ref)) {
 			ref.lock.readLock().unlock();
+			if(nested != null)
+				nested.releasedEnsures.add(ref);
+		}
+	}
+
+	// Release all read locks held by ensure
+	private void releaseEnsures(){
+		for(int k = 0; k < ensures.capacity(); k++) {
+			Ref r = ensures.keyAt(k);
+			if(r != null)
+				r.lock.readLock().unlock();
+		}
+		ensures.clear();
+	}
+
+	// Take ownership of ref for an irrevocable attempt and return its latest val
+	// Running owners are killed and committing owners are waited for, so this never retries
+	private Object own(Ref ref){
+		if(owned.containsKey(ref))
+			return owned.get(ref);
+		while(true) {
+			Info refinfo;
+			tryWriteLock(ref);
+			try {
+				if(ref.tvals == null)
+					throw new IllegalStateException(ref.toString() + " is unbound.");
+				refinfo = ref.tinfo;
+				boolean free = refinfo == null || refinfo == info || !refinfo.running();
+				if(!free && refinfo.kill())
+					free = true;
+				if(free) {
+					ref.tinfo = info;
+					Object val = ref.tvals.val;
+					owned.put(ref, val);
+					return val;
+				}
+			} finally {
+				ref.lock.writeLock().unlock();
+			}
+			// The owner is committing, it releases the ref when done
+			try {
+				refinfo.awaitStop();
+			} catch(InterruptedException e) {
+				throw Util.sneakyThrow(e);
+			}
 		}
 	}
 
@@ -221,19 +576,19 @@ public class LockingTransaction{
 		throw new AbortException();
 	}
 
-	// Bool whether or not the barge time is elapsed
-	private boolean bargeTimeElapsed(){
-		return System.nanoTime() - startTime > BARGE_WAIT_NANOS;
-	}
-
 	// Barge the transaction which is the owner of refinfo
-	private boolean barge(Info refinfo){
+	private boolean barge(Ref ref, Info refinfo){
 		boolean barged = false;
-		// If this transaction is older, try to abort the other
-		if(bargeTimeElapsed() && startPoint < refinfo.startPoint) {
-			barged = refinfo.status.compareAndSet(RUNNING, KILLED);
-			if(barged)
-				refinfo.latch.countDown();
+		// If the contention manager allows it, try to abort the other, an irrevocable transaction is never aborted
+		if(!refinfo.irrevocable && contentionManager.shouldBarge(info, refinfo)) {
+			barged = refinfo.kill();
+			if(STMStats.ENABLED) {
+				STMStats.bargeAttempts.increment();
+				if(barged)
+					STMStats.bargeSuccesses.increment();
+			}
+			if(STMFlightRecorder.ENABLED)
+				STMFlightRecorder.barge(startPoint, info.attempt, ref, refinfo, barged);
 		}
 		return barged;
 	}
@@ -259,32 +614,212 @@ public class LockingTransaction{
 		return t;
 	}
 
+	// Get the number of retries caused by timing out on a write lock since the JVM started
+	static public long getLockTimeouts(){
+		return STMStats.lockTimeouts.sum();
+	}
+
+	// Get the contention manager used by transactions not given one explicitly
+	static public STMContentionManager getContentionManager(){
+		return defaultContentionManager;
+	}
+
+	// Set the contention manager used by transactions not given one explicitly
+	static public void setContentionManager(STMContentionManager contentionManager){
+		if(contentionManager == null)
+			throw new IllegalArgumentException("The contention manager cannot be nil");
+		defaultContentionManager = contentionManager;
+	}
+
 	// Run a specific Callable function fn in this transaction
-	static public Object runInTransaction(Callable fn) throws Exception{
+	static public Object runInTransaction(Callable<?> fn) throws Exception{
+		return runInTransaction(fn, null);
+	}
+
+	// Run a specific Callable function fn in this transaction, options only apply if fn starts a new transaction
+	static public Object runInTransaction(Callable<?> fn, IPersistentMap options) throws Exception{
 		// Get the this transaction and create identifier for the return value of fn
 		LockingTransaction t = transaction.get();
-		Object ret;
-		// Check is the the transaction exists
-		if(t == null) {
-			// If not, set the this transaction to a new LockingTransaction
+		// The transaction of a thread is kept and reused by its next transactions
+		if(t == null)
+			transaction.set(t = new LockingTransaction());
+		// If the transaction is running, call fn in it
+		if(t.info != null) {
+			// The enclosing transaction might already have retried, so it cannot become irrevocable now
+			if(options != null && RT.booleanCast(options.valAt(IRREVOCABLEKEYWORD)) && !t.irrevocable)
+				throw new IllegalStateException("Can't run an irrevocable transaction in a revocable transaction");
+			return fn.call();
+		}
+		// Watches, listeners and predicates run by a transaction between or after its attempts start a new one
+		if(t.active) {
+			LockingTransaction outer = t;
 			transaction.set(t = new LockingTransaction());
-			// Try to run fn and get the return value
 			try {
-				ret = t.run(fn);
+				return t.run(fn, options);
 			} finally {
-				// No matter what, remove the transaction afterwards
+				transaction.set(outer);
+			}
+		}
+		return t.run(fn, options);
+	}
+
+	// Run fn as an asynchronous transaction on the executor given by the options or the agent send-off pool
+	static public STMFuture runAsync(Callable<?> fn, IPersistentMap options){
+		if(isRunning())
+			throw new IllegalStateException("Can't start an asynchronous transaction in a transaction");
+		Executor executor = Agent.soloExecutor;
+		if(options != null && options.valAt(EXECUTORKEYWORD) != null)
+			executor = (Executor) options.valAt(EXECUTORKEYWORD);
+		STMFuture future = new STMFuture(fn, options, executor);
+		future.submit();
+		return future;
+	}
+
+	// Run fn for future on the current thread until it commits or blocks, returns STMFuture.PARKED if it blocked
+	static Object runAsyncAttempt(Callable<?> fn, IPersistentMap options, STMFuture future) throws Exception{
+		// The executor might run the task on a thread in a transaction, that transaction is restored afterwards
+		LockingTransaction prev = transaction.get();
+		LockingTransaction t = new LockingTransaction();
+		t.future = future;
+		transaction.set(t);
+		try {
+			return t.run(fn, options);
+		} finally {
+			if(prev == null)
 				transaction.remove();
+			else
+				transaction.set(prev);
+		}
+	}
+
+	// Run fn with the given options, the options of an enclosing run are restored afterwards
+	Object run(Callable<?> fn, IPersistentMap options) throws Exception{
+		STMContentionManager prevContentionManager = contentionManager;
+		boolean prevReadOnly = readOnly;
+		boolean prevSnapshot = snapshot;
+		boolean prevOptimisticEnsure = optimisticEnsure;
+		boolean prevBackgroundAfterCommit = backgroundAfterCommit;
+		boolean prevIrrevocableDeclared = irrevocableDeclared;
+		int prevIrrevocableAfter = irrevocableAfter;
+		boolean prevProfiled = profiled;
+		long[] prevSiteCounts = siteCounts;
+		profiled = STMProfiler.enabled && STMProfiler.sample();
+		siteCounts = null;
+		active = true;
+		try {
+			contentionManager = defaultContentionManager;
+			readOnly = false;
+			snapshot = false;
+			optimisticEnsure = defaultOptimisticEnsure;
+			backgroundAfterCommit = defaultBackgroundAfterCommit;
+			irrevocableDeclared = false;
+			irrevocableAfter = defaultIrrevocableAfter;
+			if(options != null) {
+				Object cm = options.valAt(CONTENTIONMANAGERKEYWORD);
+				if(cm != null)
+					contentionManager = (STMContentionManager) cm;
+				snapshot = RT.booleanCast(options.valAt(SNAPSHOTKEYWORD));
+				readOnly = snapshot || RT.booleanCast(options.valAt(READONLYKEYWORD));
+				Object ensure = options.valAt(ENSUREKEYWORD);
+				if(ensure != null)
+					optimisticEnsure = optimisticEnsure(ensure);
+				Object afterCommit = options.valAt(AFTERCOMMITKEYWORD);
+				if(afterCommit != null)
+					backgroundAfterCommit = backgroundAfterCommit(afterCommit);
+				irrevocableDeclared = RT.booleanCast(options.valAt(IRREVOCABLEKEYWORD));
+				Object after = options.valAt(IRREVOCABLEAFTERKEYWORD);
+				if(after != null)
+					irrevocableAfter = RT.intCast(after);
+				if(readOnly && irrevocableDeclared)
+					throw new IllegalArgumentException("A transaction can't be both read only and irrevocable");
 			}
-		} else {
-			// If the transaction exists, call fn or run the transaction if the transactional info is set
-			if(t.info != null) {
-				ret = fn.call();
-			} else {
-				ret = t.run(fn);
+			return run(fn);
+		} finally {
+			// The stack still holds the caller, so the call site is only looked up if something was profiled
+			if(siteCounts != null)
+				STMProfiler.site(fn, siteCounts);
+			// The transaction is kept by the thread, so it must not keep refs alive
+			active = false;
+			gets.clear();
+			conflictRef = null;
+			// A run ending at the retry limit after a blocking retry must not make the next run of the thread wait
+			if(blockingBehavior != null) {
+				STMWaiterIndex.unregister(blockingBehavior);
+				blockingBehavior = null;
 			}
+			retryEvent = null;
+			nested = null;
+			retryCause = STMStats.WRITE_CONFLICT;
+			karma = 0;
+			notify.clear();
+			actions.clear();
+			eventListeners.clear();
+			changedBlockingBehaviors.clear();
+			profiled = prevProfiled;
+			siteCounts = prevSiteCounts;
+			contentionManager = prevContentionManager;
+			readOnly = prevReadOnly;
+			snapshot = prevSnapshot;
+			optimisticEnsure = prevOptimisticEnsure;
+			backgroundAfterCommit = prevBackgroundAfterCommit;
+			irrevocableDeclared = prevIrrevocableDeclared;
+			irrevocableAfter = prevIrrevocableAfter;
 		}
+	}
 
-		return ret;
+	// Parse the ensure mode given by the :ensure option or the clojure.stm.ensure property, the lock mode by default
+	private static boolean optimisticEnsure(Object mode){
+		if(mode == null || mode == LOCKKEYWORD || "lock".equals(mode))
+			return false;
+		if(mode == OPTIMISTICKEYWORD || "optimistic".equals(mode))
+			return true;
+		throw new IllegalArgumentException("Unknown ensure mode " + mode + ", must be either lock or optimistic");
+	}
+
+	// Parse the after-commit mode given by the :after-commit option or the clojure.stm.afterCommit property, inline by default
+	private static boolean backgroundAfterCommit(Object mode){
+		if(mode == null || mode == INLINEKEYWORD || "inline".equals(mode))
+			return false;
+		if(mode == BACKGROUNDKEYWORD || "background".equals(mode))
+			return true;
+		throw new IllegalArgumentException("Unknown after-commit mode " + mode + ", must be either inline or background");
+	}
+
+	// Hand the watches, wakeups and after-commit listeners of the commit to STMAfterCommit, the lists are left empty
+	private void queueAfterCommit(){
+		ArrayList<EventFn> listeners = eventListeners.remove(AFTERCOMMITKEYWORD);
+		if(notify.isEmpty() && changedBlockingBehaviors.isEmpty() && listeners == null)
+			return;
+		STMAfterCommit.submit(new STMAfterCommit.Commit(
+				notify.toArray(new Notify[notify.size()]),
+				changedBlockingBehaviors.toArray(new STMBlockingBehavior[changedBlockingBehaviors.size()]),
+				listeners));
+		notify.clear();
+		changedBlockingBehaviors.clear();
+	}
+
+	// Check if the attempt wrote nothing and has nothing to run at commit, so it can commit without the write path
+	private boolean nothingToCommit(){
+		return vals.isEmpty() && commutes.isEmpty() && counterDeltas.isEmpty()
+				&& !eventListeners.containsKey(ONCOMMITKEYWORD);
+	}
+
+	// Apply a commute function to val, without consing the arguments when there are none
+	private static Object applyCommute(IFn fn, Object val, ISeq args){
+		return args == null ? fn.invoke(val) : fn.applyTo(RT.cons(val, args));
+	}
+
+	// Add a commute to the log
+	private void logCommute(Ref ref, IFn fn, ISeq args){
+		if(commuteCount == commuteRefs.length) {
+			commuteRefs = Arrays.copyOf(commuteRefs, commuteCount * 2);
+			commuteFns = Arrays.copyOf(commuteFns, commuteCount * 2);
+			commuteArgs = Arrays.copyOf(commuteArgs, commuteCount * 2);
+		}
+		commuteRefs[commuteCount] = ref;
+		commuteFns[commuteCount] = fn;
+		commuteArgs[commuteCount] = args;
+		commuteCount++;
 	}
 
 	static class Notify{
@@ -299,26 +834,78 @@ public class LockingTransaction{
 		}
 	}
 
-	Object run(Callable fn) throws Exception{
+	Object run(Callable<?> fn) throws Exception{
 		// Initialising variables for done state and return value
 		boolean done = false;
 		Object ret = null;
-		// List of refs we have write lock on
-		ArrayList<Ref> locked = new ArrayList<Ref>();
-		ArrayList<Notify> notify = new ArrayList<Notify>();
+		// Whether the stamps of the refs in vals are marked as being written
+		boolean writing = false;
+		// Number of retries caused by conflicts rather than by blocking, used to escalate to irrevocable
+		int conflicts = 0;
 
 		// As long as the retry limit has not been reached and the transaction is not done
 		for(int i = 0; !done && i < RETRY_LIMIT; i++) {
             // If a blocking behavior is set for this transaction, block the transaction
             if (this.blockingBehavior != null) {
-                this.blockingBehavior.await();
-                LockingTransaction.blockingBehaviors.remove(this.blockingBehavior);
-                this.blockingBehavior = null;
+                // An asynchronous transaction frees the thread, its future runs it again once it unblocks
+                if (this.future != null) {
+                    STMBlockingBehavior parked = this.blockingBehavior;
+                    this.blockingBehavior = null;
+                    if (STMFlightRecorder.ENABLED) {
+                        STMFlightRecorder.endRetry(this.retryEvent);
+                    }
+                    this.retryEvent = null;
+                    return this.future.park(parked);
+                }
+                try {
+                    this.blockingBehavior.await();
+                } finally {
+                    STMWaiterIndex.unregister(this.blockingBehavior);
+                    this.blockingBehavior = null;
+                    if (STMFlightRecorder.ENABLED) {
+                        STMFlightRecorder.endRetry(this.retryEvent);
+                    }
+                    this.retryEvent = null;
+                }
             }
             // Clears the set of read refs
             gets.clear();
 
+			Object event = STMFlightRecorder.ENABLED ? STMFlightRecorder.beginTransaction() : null;
+			String outcome = "exception";
+			conflictRef = null;
 			try {
+				if(readOnly) {
+					// A read only transaction never owns refs, so it needs neither a unique point nor a new info
+					if(snapshot) {
+						if(pin == null)
+							pin = new STMHistory.Pin();
+						readPoint = STMHistory.pin(pin, clock);
+					} else {
+						readPoint = clock.current();
+					}
+					if(i == 0)
+						startPoint = readPoint;
+					if(readOnlyInfo == null)
+						readOnlyInfo = new Info(RUNNING, readPoint);
+					info = readOnlyInfo;
+					try {
+						ret = fn.call();
+					} finally {
+						if(snapshot)
+							STMHistory.unpin(pin);
+					}
+					// Transactional listeners for the commit see no written refs
+					EventManager.runEvents(LockingTransaction.ONCOMMITKEYWORD, this.eventListeners, PersistentHashSet.EMPTY);
+					done = true;
+					continue;
+				}
+
+				// Declared irrevocable transactions, and transactions that keep conflicting, run with the token
+				if(irrevocableDeclared || (irrevocableAfter > 0 && conflicts >= irrevocableAfter)) {
+					irrevocableToken.acquireUninterruptibly();
+					irrevocable = true;
+				}
 				// Set starting point and start time when i == 1
 				getReadPoint();
 				if (i == 0) {
@@ -326,20 +913,48 @@ public class LockingTransaction{
 					startTime = System.nanoTime();
 				}
 				// Set the status of the info of the transaction to RUNNING
-				info = new Info(RUNNING, startPoint);
+				if(i == 0)
+					karma = 0;
+				if(spareInfo != null) {
+					info = spareInfo;
+					spareInfo = null;
+					info.reset(RUNNING, startPoint, startTime, i, karma, irrevocable);
+				} else {
+					info = new Info(RUNNING, startPoint, startTime, i, karma, irrevocable);
+				}
 				// Get the return value
 				ret = fn.call();
+				// Nothing was written so no other transaction knows our info, commit without locking or a commit point
+				if(nothingToCommit()) {
+					done = true;
+					info.status.set(COMMITTED);
+				}
 				// Make sure no one has killed us before this point, and can't from now on
-				if (info.status.compareAndSet(RUNNING, COMMITTING)) {
-					// Run through all commutes
-					for(Map.Entry<Ref, ArrayList<CFn>> e : commutes.entrySet()) {
-						// Ref is the key, CFn is the value
-						Ref ref = e.getKey();
-						// If the ref is already in the set of refs skip it (for some reason)
-						if(sets.contains(ref)) continue;
+				else if (info.status.compareAndSet(RUNNING, COMMITTING)) {
+					// Write lock all set and commuted refs in Ref order, so transactions writing the same refs
+					// wait for each other at most once instead of timing out on each other's locks
+					for(int k = 0; k < sets.capacity(); k++) {
+						Ref ref = sets.keyAt(k);
+						if(ref != null)
+							writeOrder.add(ref);
+					}
+					for(int k = 0; k < commutes.capacity(); k++) {
+						Ref ref = commutes.keyAt(k);
+						if(ref != null && !sets.containsKey(ref))
+							writeOrder.add(ref);
+					}
+					Collections.sort(writeOrder);
+					for(int w = 0; w < writeOrder.size(); w++) {
+						Ref ref = writeOrder.get(w);
+						// Refs that are set are already owned by this transaction, they only need the lock
+						if(sets.containsKey(ref)) {
+							tryWriteLock(ref);
+							locked.add(ref);
+							continue;
+						}
 
 						// Check if we already have the read lock on the ref
-						boolean wasEnsured = ensures.contains(ref);
+						boolean wasEnsured = ensures.containsKey(ref) || validated.containsKey(ref);
 						// Can't upgrade readLock, so release it
 						releaseIfEnsured(ref);
 						// Try to get the write lock and add to locked
@@ -347,117 +962,239 @@ public class LockingTransaction{
 						locked.add(ref);
 						// If we had read lock on the ref, the ref is already in transaction and its point if newer than ours
 						// Throw a retry exception
-						if(wasEnsured && ref.tvals != null && ref.tvals.point > readPoint)
-							throw retryex;
+						if(wasEnsured && ref.tvals != null && ref.tvals.point > readPoint) {
+							conflict(ref, "newer-version");
+							throw retry(STMStats.WRITE_CONFLICT);
+						}
 
 						// Get the transaction info of the ref
 						Info refinfo = ref.tinfo;
 						// If the ref is in a transaction, which is not this one any it is running, try to barge in on it - otherwise retry
 						if(refinfo != null && refinfo != info && refinfo.running()) {
-							if(!barge(refinfo))
-								throw retryex;
+							if(!barge(ref, refinfo)) {
+								conflict(ref, "owned");
+								throw retry(STMStats.WRITE_CONFLICT);
+							}
 						}
 						// If the ref has a TVal then get it, otherwise null
 						Object val = (ref.tvals == null) ? null : ref.tvals.val;
 						// Add the value to the set of vals
 						vals.put(ref, val);
-						// For each commute on the ref, apply the function to the value in this transaction
-						for(CFn f : e.getValue()) {
-							vals.put(ref, f.fn.applyTo(RT.cons(vals.get(ref), f.args)));
+					}
+					// Optimistically ensured refs that are not written are read locked until the commit is done,
+					// a ref that is write locked or has a version after our read point was changed since we read it
+					for(int k = 0; k < validated.capacity(); k++) {
+						Ref ref = validated.keyAt(k);
+						if(ref == null || vals.containsKey(ref) || ensures.containsKey(ref))
+							continue;
+						if(!ref.lock.readLock().tryLock()) {
+							conflict(ref, "ensure-locked");
+							throw retry(STMStats.WRITE_CONFLICT);
+						}
+						ensures.add(ref);
+						if(ref.tvals != null && ref.tvals.point > readPoint) {
+							conflict(ref, "newer-version");
+							throw retry(STMStats.WRITE_CONFLICT);
 						}
 					}
-					// Get write lock for all refs in the set of refs
-					for(Ref ref : sets) {
-						tryWriteLock(ref);
-						locked.add(ref);
+					// Apply the commutes in the order they were called to the latest values of the commuted refs,
+					// consecutive commutes of a ref are applied as one run without storing the values between them
+					for(int k = 0; k < commuteCount; ) {
+						Ref ref = commuteRefs[k];
+						int end = k + 1;
+						while(end < commuteCount && commuteRefs[end] == ref)
+							end++;
+						if(!sets.containsKey(ref)) {
+							Object val = vals.get(ref);
+							for(; k < end; k++)
+								val = applyCommute(commuteFns[k], val, commuteArgs[k]);
+							vals.put(ref, val);
+						}
+						k = end;
 					}
 
 					// Validate and enqueue notifications
 					// Validators is run here
-					for(Map.Entry<Ref, Object> e : vals.entrySet()) {
-						Ref ref = e.getKey();
-						ref.validate(ref.getValidator(), e.getValue());
+					for(int k = 0; k < vals.capacity(); k++) {
+						Ref ref = vals.keyAt(k);
+						if(ref != null)
+							ref.validate(ref.getValidator(), vals.valAt(k));
 					}
 
-					// Notify all listeners for "on-commit" event
-					PersistentHashSet persistentSets = PersistentHashSet.create(RT.seq(this.vals.keySet()));
-					EventManager.runEvents(LockingTransaction.ONCOMMITKEYWORD, this.eventListeners, persistentSets);
+					// Notify all listeners for "on-commit" event, the set of written refs is only built for listeners
+					if(eventListeners.containsKey(ONCOMMITKEYWORD)) {
+						ITransientCollection written = PersistentHashSet.EMPTY.asTransient();
+						for(int k = 0; k < vals.capacity(); k++) {
+							if(vals.keyAt(k) != null)
+								written = written.conj(vals.keyAt(k));
+						}
+						EventManager.runEvents(LockingTransaction.ONCOMMITKEYWORD, this.eventListeners, written.persistent());
+					}
+
+					// Claim a cell of each counter added to, and all cells of each ensured or validated counter, before
+					// the commit point is taken, so readers of the counters wait for the commit. No client code runs
+					// after this, so the transaction never waits for its own cells
+					for(int k = 0; k < ensuredCounters.capacity(); k++) {
+						CounterRef counter = (CounterRef) ensuredCounters.keyAt(k);
+						if(counter == null || claimedCounters.containsKey(counter))
+							continue;
+						if(!claimAllCellsNow(counter)) {
+							conflict(counter, "ensure-locked");
+							throw retry(STMStats.WRITE_CONFLICT);
+						}
+						claimedCounters.put(counter, -1);
+						if(!counter.unchangedSince(readPoint)) {
+							conflict(counter, "newer-version");
+							throw retry(STMStats.WRITE_CONFLICT);
+						}
+					}
+					for(int k = 0; k < counterDeltas.capacity(); k++) {
+						CounterRef counter = (CounterRef) counterDeltas.keyAt(k);
+						if(counter == null)
+							continue;
+						IFn validator = counter.getValidator();
+						// A validated sum must not change until the commit, so all cells are claimed
+						if(!claimedCounters.containsKey(counter))
+							claimedCounters.put(counter, validator == null ? claimCell(counter) : claimAllCells(counter));
+						if(validator != null) {
+							long delta = ((long[]) counterDeltas.valAt(k))[0];
+							counter.validate(validator, Numbers.add(counter.sum(), delta));
+						}
+					}
 
 					// At this point, all values calculated, all refs to be written locked
 					// No more client code to be called
+					// Lock free readers of the refs fall back to the read lock until the commit is done,
+					// this must happen before the commit point is taken so no reader can see only part of the commit
+					for(int k = 0; k < vals.capacity(); k++) {
+						if(vals.keyAt(k) != null)
+							vals.keyAt(k).beginWrite();
+					}
+					writing = true;
 					// Get commit point
 					long commitPoint = getCommitPoint();
-					for(Map.Entry<Ref, Object> e : vals.entrySet()) {
-						Ref ref = e.getKey();
+					long pinned = STMHistory.oldestPin();
+					for(int k = 0; k < vals.capacity(); k++) {
+						Ref ref = vals.keyAt(k);
+						if(ref == null)
+							continue;
 						Object oldval = ref.tvals == null ? null : ref.tvals.val;
-						Object newval = e.getValue();
-						int hcount = ref.histCount();
-
-						// If the ref have no TVal, set this one
-						if(ref.tvals == null) {
-							ref.tvals = new Ref.TVal(newval, commitPoint);
-						} else if((ref.faults.get() > 0 && hcount < ref.maxHistory)
-								|| hcount < ref.minHistory) {
-							// There are faults in the ref and the history is a correct value
-							// Set the TVal for the ref
-							ref.tvals = new Ref.TVal(newval, commitPoint, ref.tvals);
-							ref.faults.set(0);
-						} else {
-							// The ref already has a TVal, set this as the next one
-							// Set the new value and commit point
-							ref.tvals = ref.tvals.next;
-							ref.tvals.val = newval;
-							ref.tvals.point = commitPoint;
-						}
+						Object newval = vals.valAt(k);
+						// Add, reuse or drop an old version depending on the readers of the ref
+						STMHistory.commit(ref, newval, commitPoint, pinned);
+						// The ref is released while locked, so our info can be reused by the next transaction
+						if(ref.tinfo == info)
+							ref.tinfo = null;
+						// Find the blocking transactions waiting on this ref
+						STMWaiterIndex.collect(ref, changedBlockingBehaviors);
 						// Notify all watches
 						if(ref.getWatches().count() > 0)
 							notify.add(new Notify(ref, oldval, newval));
 					}
+					for(int k = 0; k < counterDeltas.capacity(); k++) {
+						CounterRef counter = (CounterRef) counterDeltas.keyAt(k);
+						if(counter == null)
+							continue;
+						long delta = ((long[]) counterDeltas.valAt(k))[0];
+						int cell = (Integer) claimedCounters.get(counter);
+						counter.add(cell < 0 ? 0 : cell, delta, commitPoint);
+						// Find the blocking transactions waiting on this counter
+						counter.committed(commitPoint);
+						STMWaiterIndex.collect(counter, changedBlockingBehaviors);
+						if(counter.getWatches().count() > 0) {
+							long newval = counter.sum();
+							notify.add(new Notify(counter, newval - delta, newval));
+						}
+					}
 
 					// If we got to this point, we are done
 					// Set the status of the info of the transaction to COMMITTED
 					done = true;
 					info.status.set(COMMITTED);
+				} else {
+					// Killed by another transaction after running fn
+					if(STMStats.ENABLED)
+						STMStats.abort(STMStats.BARGED);
+					if(profiled)
+						profileSite(STMStats.BARGED, 1);
+					outcome = STMStats.causeName(STMStats.BARGED);
 				}
 			} catch(RetryEx ex) {
+				if(STMStats.ENABLED)
+					STMStats.abort(retryCause);
+				outcome = STMStats.causeName(retryCause);
+				if(profiled && retryCause != STMStats.USER_RETRY) {
+					if(conflictRef != null)
+						STMProfiler.retry(conflictRef, retryCause);
+					profileSite(retryCause, 1);
+				}
+				// A blocking retry waits for a change, so only the other retries count as conflicts
+				if(this.blockingBehavior == null)
+					conflicts++;
+				else
+					conflicts = 0;
 				// Ignore the exception so we retry rather than fall out
 				EventManager.runEvents(LockingTransaction.ONABORTKEYWORD, this.eventListeners, null);
 			} catch(AbortException ae) {
+				outcome = "terminated";
                 // We want to terminate the transaction but have nothing to return
                 return null;
 			} catch(Exception exception) {
 				EventManager.runEvents(LockingTransaction.ONABORTKEYWORD, this.eventListeners, null);
                 throw exception;
 			} finally {
+				// Queued while the written refs are still locked, so commits of the same refs queue in commit order
+				if(done && backgroundAfterCommit)
+					queueAfterCommit();
 				// Do this no matter what
+				if(writing) {
+					for(int k = 0; k < vals.capacity(); k++) {
+						if(vals.keyAt(k) != null)
+							vals.keyAt(k).endWrite();
+					}
+					writing = false;
+				}
 				// Unlock all write locks
 				for(int k = locked.size() - 1; k >= 0; --k) {
 					locked.get(k).lock.writeLock().unlock();
 				}
 				locked.clear();
+				writeOrder.clear();
+				releaseCounters();
 				// Unlock all read locks
-				for(Ref r : ensures) {
-					r.lock.readLock().unlock();
-				}
-				ensures.clear();
+				releaseEnsures();
 
 				// Are we done or should we retry?
 				stop(done ? COMMITTED : RETRY);
+				if(done && STMStats.ENABLED)
+					STMStats.commit(i + 1);
+				if(STMFlightRecorder.ENABLED)
+					STMFlightRecorder.endTransaction(event, startPoint, readPoint, i, done ? "committed" : outcome);
+				// Let the next irrevocable transaction run, side effects after the commit do not need the token
+				if(irrevocable) {
+					irrevocable = false;
+					irrevocableToken.release();
+				}
                 try {
                     // Re-dispatch out of transaction
                     if(done) {
+                        if(backgroundAfterCommit)
+                            STMAfterCommit.schedule();
                         // Notify watches
-                        for(Notify n : notify) {
+                        for(int k = 0; k < notify.size(); k++) {
+                            Notify n = notify.get(k);
                             n.ref.notifyWatches(n.oldval, n.newval);
                         }
                         // Run agents, I think this is the ones used in the transaction as side-effects
-                        for(Agent.Action action : actions) {
-                            Agent.dispatchAction(action);
+                        for(int k = 0; k < actions.size(); k++) {
+                            Agent.dispatchAction(actions.get(k));
 						}
 
-						// All blocking transactions are notified of the changed refs
-                        for (STMBlockingBehavior blockingBehavior : LockingTransaction.blockingBehaviors) {
-                            blockingBehavior.handleChanged();
+						// Blocking transactions waiting on the written refs are notified
+                        if (!changedBlockingBehaviors.isEmpty()) {
+                            for (STMBlockingBehavior blockingBehavior : changedBlockingBehaviors) {
+                                blockingBehavior.handleChanged();
+                            }
                         }
 
 						// Executes after-commit events
@@ -468,9 +1205,7 @@ public class LockingTransaction{
 					notify.clear();
 					actions.clear();
 					eventListeners.clear();
-					// Clear sets here instead of in stop() since we need the references
-					// when handling changes for blocking behaviors
-					sets.clear();
+					changedBlockingBehaviors.clear();
 				}
 			}
 		}
@@ -490,52 +1225,130 @@ public class LockingTransaction{
 
 	Object doGet(Ref ref){
 		if(!info.running())
-			throw retryex;
+			throw retry(STMStats.BARGED);
+		info.karma++;
         // Add this ref to the set of gets
         gets.add(ref);
+		if(!lazyCommutes.isEmpty() && lazyCommutes.containsKey(ref))
+			return evalLazyCommutes(ref);
 		if(vals.containsKey(ref))
 			return vals.get(ref);
+		if(irrevocable)
+			return own(ref);
+		// Walk the versions without the lock, if a commit of the ref starts or is in progress the locked walk is used
+		long stamp = ref.stamp;
+		if((stamp & 1) == 0) {
+			Ref.TVal head = ref.tvals;
+			if(head != null) {
+				Ref.TVal ver = head;
+				int depth = 0;
+				do {
+					if(ver.point <= readPoint) {
+						Object val = ver.val;
+						if(ref.stamp == stamp) {
+							readDepth(ref, depth);
+							return val;
+						}
+						break;
+					}
+					depth++;
+				} while((ver = ver.prior) != head && ref.stamp == stamp);
+				// The whole ring was seen unchanged, so no version precedes the read point
+				if(ver == head && ref.stamp == stamp) {
+					throw readFault(ref);
+				}
+			}
+		}
 		try {
 			ref.lock.readLock().lock();
 			if(ref.tvals == null)
 				throw new IllegalStateException(ref.toString() + " is unbound.");
 			Ref.TVal ver = ref.tvals;
+			int depth = 0;
 			do {
-				if(ver.point <= readPoint)
+				if(ver.point <= readPoint) {
+					readDepth(ref, depth);
 					return ver.val;
+				}
+				depth++;
 			} while ((ver = ver.prior) != ref.tvals);
 		} finally {
 			ref.lock.readLock().unlock();
 		}
 		// no version of val precedes the read point
+		throw readFault(ref);
+	}
+
+	// Record that an old version of ref was read, so the ref keeps its history as deep as its readers need
+	private static void readDepth(Ref ref, int depth){
+		if(depth > ref.readDepth)
+			ref.readDepth = depth;
+	}
+
+	// Record that no version of ref precedes the read point, so the ref keeps more history, and return the retry
+	private RetryEx readFault(Ref ref){
 		ref.faults.incrementAndGet();
-		throw retryex;
+		if(profiled) {
+			STMProfiler.fault(ref);
+			profileSite(STMProfiler.FAULTS, 1);
+		}
+		conflict(ref, "read-fault");
+		return retry(STMStats.READ_FAULT);
 	}
 
 	Object doSet(Ref ref, Object val){
 		if(!info.running())
-			throw retryex;
+			throw retry(STMStats.BARGED);
+		if(readOnly)
+			throw new IllegalStateException("Can't set a ref in a read only transaction");
+		info.karma++;
 		if (commutes.containsKey(ref))
 			throw new IllegalStateException("Can't set after commute");
-		if(!sets.contains(ref)) {
-			lock(ref);
+		if(!sets.containsKey(ref)) {
+			if(irrevocable)
+				own(ref);
+			else
+				lock(ref);
 			sets.add(ref);
+			if(nested != null)
+				nested.addedSets.add(ref);
 		}
+		logVal(ref);
 		vals.put(ref, val);
 		return val;
 	}
 
 	void doEnsure(Ref ref){
 		if(!info.running())
-			throw retryex;
-		if(ensures.contains(ref))
+			throw retry(STMStats.BARGED);
+		// Without writes there is no write skew to prevent
+		if(readOnly)
+			return;
+		info.karma++;
+		// Owning the ref is stronger than ensuring it
+		if(irrevocable) {
+			own(ref);
 			return;
+		}
+		if(ensures.containsKey(ref))
+			return;
+		// An optimistic ensure holds nothing while the transaction runs, the ref is validated at commit
+		if(optimisticEnsure) {
+			if(ref.tvals != null && ref.tvals.point > readPoint) {
+				conflict(ref, "newer-version");
+				throw retry(STMStats.WRITE_CONFLICT);
+			}
+			if(validated.add(ref) && nested != null)
+				nested.addedValidated.add(ref);
+			return;
+		}
 		ref.lock.readLock().lock();
 
 		//someone completed a write after our snapshot
 		if(ref.tvals != null && ref.tvals.point > readPoint) {
 			ref.lock.readLock().unlock();
-			throw retryex;
+			conflict(ref, "newer-version");
+			throw retry(STMStats.WRITE_CONFLICT);
 		}
 
 		Info refinfo = ref.tinfo;
@@ -546,44 +1359,232 @@ public class LockingTransaction{
 
 			//not us, ensure is doomed
 			if(refinfo != info) {
-				blockAndBail(refinfo);
+				blockAndBail(ref, refinfo);
 			}
 		} else {
 			ensures.add(ref);
+			if(nested != null)
+				nested.addedEnsures.add(ref);
 		}
 	}
 
 	Object doCommute(Ref ref, IFn fn, ISeq args) {
 		if(!info.running())
-			throw retryex;
+			throw retry(STMStats.BARGED);
+		if(readOnly)
+			throw new IllegalStateException("Can't commute a ref in a read only transaction");
+		// An irrevocable transaction cannot retry at commit, so the commute is applied now on the owned ref
+		if(irrevocable)
+			return doSet(ref, fn.applyTo(RT.cons(doGet(ref), args)));
+		info.karma++;
+		if(lazyCommutes.containsKey(ref))
+			evalLazyCommutes(ref);
+		logVal(ref);
 		if(!vals.containsKey(ref)) {
-			Object val = null;
+			vals.put(ref, ref.latestVal(null));
+		}
+		if(commutes.add(ref) && nested != null)
+			nested.addedCommutes.add(ref);
+		logCommute(ref, fn, args);
+		Object ret = applyCommute(fn, vals.get(ref), args);
+		vals.put(ref, ret);
+		return ret;
+	}
+
+	// The value of counter at the read point plus the amount the transaction added to it
+	Object doGetCounter(CounterRef counter){
+		if(!info.running())
+			throw retry(STMStats.BARGED);
+		info.karma++;
+		// Add this counter to the set of gets, so retry waits for it like for a ref
+		gets.add(counter);
+		Object val;
+		if(irrevocable) {
+			holdCounter(counter);
+			val = counter.sum();
+		} else if(claimedCounters.containsKey(counter)) {
+			// The cells claimed by this transaction would never be released while it waits for them
+			val = counter.sum();
+		} else {
 			try {
-				ref.lock.readLock().lock();
-				val = ref.tvals == null ? null : ref.tvals.val;
-			} finally {
-				ref.lock.readLock().unlock();
+				val = counter.valueAt(readPoint, TimeUnit.MILLISECONDS.toNanos(LOCK_WAIT_MSECS));
+			} catch(InterruptedException e) {
+				val = CounterRef.CLAIMED;
+			}
+			if(val == CounterRef.CLAIMED) {
+				STMStats.lockTimeouts.increment();
+				conflict(counter, "claimed");
+				throw retry(STMStats.LOCK_TIMEOUT);
 			}
-			vals.put(ref, val);
+			if(val == null)
+				throw readFault(counter);
 		}
-		ArrayList<CFn> fns = commutes.get(ref);
-		if(fns == null) {
-			commutes.put(ref, fns = new ArrayList<CFn>());
+		long[] delta = (long[]) counterDeltas.get(counter);
+		return delta == null ? val : Numbers.add((Long) val, delta[0]);
+	}
+
+	// Add n to counter at commit, returns the latest value plus the amount the transaction added as commute does
+	Object doAddCounter(CounterRef counter, long n){
+		if(!info.running())
+			throw retry(STMStats.BARGED);
+		if(readOnly)
+			throw new IllegalStateException("Can't commute a ref in a read only transaction");
+		info.karma++;
+		long[] delta = (long[]) counterDeltas.get(counter);
+		if(nested != null && !nested.savedCounterDeltas.containsKey(counter))
+			nested.savedCounterDeltas.put(counter, delta == null ? Nested.NOVAL : delta[0]);
+		if(delta == null) {
+			delta = new long[1];
+			counterDeltas.put(counter, delta);
 		}
-		fns.add(new CFn(fn, args));
-		Object ret = fn.applyTo(RT.cons(vals.get(ref), args));
-		vals.put(ref, ret);
-		return ret;
+		delta[0] = Numbers.add(delta[0], n);
+		return Numbers.add(counter.sum(), delta[0]);
+	}
+
+	// Ensure counter does not change before the commit, it is validated at commit while all its cells are claimed
+	void doEnsureCounter(CounterRef counter){
+		if(!info.running())
+			throw retry(STMStats.BARGED);
+		if(readOnly)
+			return;
+		info.karma++;
+		if(irrevocable) {
+			holdCounter(counter);
+			return;
+		}
+		if(!counter.unchangedSince(readPoint)) {
+			conflict(counter, "newer-version");
+			throw retry(STMStats.WRITE_CONFLICT);
+		}
+		if(ensuredCounters.add(counter) && nested != null)
+			nested.addedEnsuredCounters.add(counter);
+	}
+
+	// Claim all cells of counter until the irrevocable attempt ends, so its value stays the one read
+	private void holdCounter(CounterRef counter){
+		if(!claimedCounters.containsKey(counter)) {
+			try {
+				counter.claimAll(Long.MAX_VALUE);
+			} catch(InterruptedException e) {
+				throw Util.sneakyThrow(e);
+			}
+			claimedCounters.put(counter, -1);
+		}
+	}
+
+	// The deadline of waiting for the cells of a counter, as long as for a write lock unless irrevocable
+	private long cellDeadline(){
+		return irrevocable ? Long.MAX_VALUE : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LOCK_WAIT_MSECS);
+	}
+
+	// Claim a cell of counter at commit, waiting as long as for a write lock while all cells are claimed
+	private int claimCell(CounterRef counter){
+		int cell;
+		try {
+			cell = counter.claimAny(cellDeadline());
+		} catch(InterruptedException e) {
+			if(irrevocable)
+				throw Util.sneakyThrow(e);
+			cell = -1;
+		}
+		if(cell < 0) {
+			STMStats.lockTimeouts.increment();
+			conflictRef = counter;
+			throw retry(STMStats.LOCK_TIMEOUT);
+		}
+		return cell;
+	}
+
+	// Claim all cells of counter at commit, waiting as long as for a write lock while others claimed some of them
+	private int claimAllCells(CounterRef counter){
+		boolean claimed;
+		try {
+			claimed = counter.claimAll(cellDeadline());
+		} catch(InterruptedException e) {
+			if(irrevocable)
+				throw Util.sneakyThrow(e);
+			claimed = false;
+		}
+		if(!claimed) {
+			STMStats.lockTimeouts.increment();
+			conflictRef = counter;
+			throw retry(STMStats.LOCK_TIMEOUT);
+		}
+		return -1;
+	}
+
+	// Claim all cells of an ensured counter at commit without waiting, it conflicts with the transactions claiming them
+	private boolean claimAllCellsNow(CounterRef counter){
+		try {
+			return counter.claimAll(System.nanoTime());
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	// Release the cells of counters claimed by the attempt
+	private void releaseCounters(){
+		if(claimedCounters.isEmpty())
+			return;
+		for(int k = 0; k < claimedCounters.capacity(); k++) {
+			CounterRef counter = (CounterRef) claimedCounters.keyAt(k);
+			if(counter == null)
+				continue;
+			int cell = (Integer) claimedCounters.valAt(k);
+			if(cell < 0)
+				counter.releaseAll();
+			else
+				counter.release(cell);
+		}
+		claimedCounters.clear();
+	}
+
+	// Like doCommute, but the commute is only evaluated at commit unless the ref is read in the transaction first
+	void doCommuteLazy(Ref ref, IFn fn, ISeq args) {
+		// An irrevocable transaction applies commutes right away, and the log of an alternative is kept simple
+		if(irrevocable || readOnly || nested != null) {
+			doCommute(ref, fn, args);
+			return;
+		}
+		if(!info.running())
+			throw retry(STMStats.BARGED);
+		info.karma++;
+		commutes.add(ref);
+		if(!lazyCommutes.containsKey(ref))
+			lazyCommutes.put(ref, commuteCount);
+		logCommute(ref, fn, args);
+	}
+
+	// Evaluate the lazy commutes of ref on the value it has in the transaction, or its latest value, as an eager
+	// commute would have
+	private Object evalLazyCommutes(Ref ref){
+		int from = (Integer) lazyCommutes.get(ref);
+		logVal(ref);
+		if(nested != null && !nested.savedLazyCommutes.containsKey(ref))
+			nested.savedLazyCommutes.put(ref, from);
+		Object val = vals.containsKey(ref) ? vals.get(ref) : ref.latestVal(null);
+		for(int k = from; k < commuteCount; k++) {
+			if(commuteRefs[k] == ref)
+				val = applyCommute(commuteFns[k], val, commuteArgs[k]);
+		}
+		vals.put(ref, val);
+		lazyCommutes.remove(ref);
+		return val;
 	}
 
     void doBlocking(HashSet<Ref> refs, IFn fn, ISeq args, boolean blockOnAll) throws InterruptedException, RetryEx {
         if ( ! info.running()) {
-            throw retryex;
+            throw retry(STMStats.BARGED);
+        }
+        // An escalated transaction can give up the token to block, but a declared one promised to run once
+        if (irrevocable && irrevocableDeclared) {
+            throw new IllegalStateException("Can't retry an irrevocable transaction");
         }
 
         if (refs == null) {
-            refs = new HashSet();
-            refs.addAll(this.gets);
+            refs = new HashSet<Ref>();
+            this.gets.addKeysTo(refs);
         }
         if (blockOnAll) {
 			if (fn != null) {
@@ -598,20 +1599,139 @@ public class LockingTransaction{
                 this.blockingBehavior = new STMBlockingBehaviorAny(refs, this.readPoint);
 			}
         }
-        LockingTransaction.blockingBehaviors.add(this.blockingBehavior);
-        throw retryex;
+        STMWaiterIndex.register(this.blockingBehavior);
+        if (STMFlightRecorder.ENABLED) {
+            this.retryEvent = STMFlightRecorder.beginRetry(this.startPoint, info.attempt, refs.size(), blockOnAll);
+        }
+        throw retry(STMStats.USER_RETRY);
     }
 
+	// Record the value of ref in vals before the running alternative first changes it
+	private void logVal(Ref ref){
+		if(nested != null && !nested.savedVals.containsKey(ref))
+			nested.savedVals.put(ref, vals.containsKey(ref) ? vals.get(ref) : Nested.NOVAL);
+	}
+
+	// Undo the effects of a failed alternative, leaving the transaction as it was before the alternative
+	private void rollback(Nested n){
+		for(Map.Entry<Ref, Object> e : n.savedVals.entrySet()) {
+			if(e.getValue() == Nested.NOVAL)
+				vals.remove(e.getKey());
+			else
+				vals.put(e.getKey(), e.getValue());
+		}
+		Arrays.fill(commuteRefs, n.commuteCount, commuteCount, null);
+		Arrays.fill(commuteFns, n.commuteCount, commuteCount, null);
+		Arrays.fill(commuteArgs, n.commuteCount, commuteCount, null);
+		commuteCount = n.commuteCount;
+		for(Ref ref : n.addedCommutes) {
+			commutes.remove(ref);
+		}
+		for(Map.Entry<Ref, Object> e : n.savedLazyCommutes.entrySet()) {
+			lazyCommutes.put(e.getKey(), e.getValue());
+		}
+		for(Map.Entry<Ref, Object> e : n.savedCounterDeltas.entrySet()) {
+			if(e.getValue() == Nested.NOVAL)
+				counterDeltas.remove(e.getKey());
+			else
+				((long[]) counterDeltas.get(e.getKey()))[0] = (Long) e.getValue();
+		}
+		for(Ref ref : n.addedEnsuredCounters)
+			ensuredCounters.remove(ref);
+		// Give up ownership of the refs only the alternative wrote, so others need not barge us for them
+		// An irrevocable transaction keeps them, it might have read them before
+		for(Ref ref : n.addedSets) {
+			sets.remove(ref);
+			if(irrevocable)
+				continue;
+			if(ref.lock.writeLock().tryLock()) {
+				try {
+					if(ref.tinfo == info)
+						ref.tinfo = null;
+				} finally {
+					ref.lock.writeLock().unlock();
+				}
+			} else {
+				infoLeaked = true;
+			}
+		}
+		for(Ref ref : n.addedEnsures) {
+			if(ensures.remove(ref))
+				ref.lock.readLock().unlock();
+		}
+		for(Ref ref : n.addedValidated)
+			validated.remove(ref);
+		actions.subList(n.actionsSize, actions.size()).clear();
+		Iterator<Map.Entry<Keyword, ArrayList<EventFn>>> it = eventListeners.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<Keyword, ArrayList<EventFn>> e = it.next();
+			Integer size = n.listenerSizes.get(e.getKey());
+			if(size == null)
+				it.remove();
+			else
+				e.getValue().subList(size, e.getValue().size()).clear();
+		}
+		// Ensures of the enclosing transaction released by the alternative are taken again
+		for(Ref ref : n.releasedEnsures) {
+			if(sets.containsKey(ref) || ensures.containsKey(ref))
+				continue;
+			ref.lock.readLock().lock();
+			if(ref.tvals != null && ref.tvals.point > readPoint) {
+				ref.lock.readLock().unlock();
+				conflict(ref, "newer-version");
+				throw retry(STMStats.WRITE_CONFLICT);
+			}
+			ensures.add(ref);
+		}
+	}
+
     Object doOrElse(ArrayList<IFn> fns) {
-        this.orElseRunning = true;
+        if ( ! info.running()) {
+            throw retry(STMStats.BARGED);
+        }
+        // Refs the failed alternatives blocked on, the transaction blocks on all of them if every alternative blocked
+        HashSet<Ref> blockRefs = new HashSet<Ref>();
+        boolean allBlocked = true;
         for (IFn fn : fns) {
+            Nested n = new Nested(this.nested, this.actions.size(), this.commuteCount, this.eventListeners);
+            this.nested = n;
+            boolean succeeded = false;
             try {
-                return fn.invoke();
+                Object ret = fn.invoke();
+                succeeded = true;
+                n.mergeIntoParent();
+                return ret;
             } catch (RetryEx ex) {
-				// We ignore the exception to allow the next function to execute
-			}
+                // Only the alternative is retried, unless the transaction itself is no longer running
+                if (info == null || ! info.running()) {
+                    throw ex;
+                }
+                this.conflictRef = null;
+                if (this.blockingBehavior != null) {
+                    STMWaiterIndex.unregister(this.blockingBehavior);
+                    blockRefs.addAll(this.blockingBehavior.refSet);
+                    this.blockingBehavior = null;
+                    this.retryEvent = null;
+                } else {
+                    allBlocked = false;
+                }
+            } finally {
+                this.nested = n.parent;
+                // The transaction might have been stopped, in which case there is nothing left to undo
+                if ( ! succeeded && info != null && info.running()) {
+                    rollback(n);
+                }
+            }
+        }
+        if (allBlocked && ! blockRefs.isEmpty()) {
+            this.blockingBehavior = new STMBlockingBehaviorAny(blockRefs, this.readPoint);
+            STMWaiterIndex.register(this.blockingBehavior);
+            if (STMFlightRecorder.ENABLED) {
+                this.retryEvent = STMFlightRecorder.beginRetry(this.startPoint, info.attempt, blockRefs.size(), false);
+            }
+            throw retry(STMStats.USER_RETRY);
         }
-		this.orElseRunning = false;
+        // The cause of the last alternative is kept
         throw retryex;
     }
 }
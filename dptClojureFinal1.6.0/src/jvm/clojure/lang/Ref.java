@@ -1,3 +1,4 @@
+// dpt1010f15
 /**
  *   Copyright (c) Rich Hickey. All rights reserved.
  *   The use and distribution terms for this software are covered by the
@@ -44,11 +45,12 @@ public Ref setMaxHistory(int maxHistory){
 	return this;
 }
 
+// The fields are volatile so readers walking the ring without the lock see the writes made before the stamp changed
 public static class TVal{
-	Object val;
-	long point;
-	TVal prior;
-	TVal next;
+	volatile Object val;
+	volatile long point;
+	volatile TVal prior;
+	volatile TVal next;
 
 	TVal(Object val, long point, TVal prior){
 		this.val = val;
@@ -68,7 +70,9 @@ public static class TVal{
 
 }
 
-TVal tvals;
+volatile TVal tvals;
+// Seqlock stamp, odd while a committing transaction holding the write lock may change tvals
+volatile long stamp;
 final AtomicInteger faults;
 final ReentrantReadWriteLock lock;
 LockingTransaction.Info tinfo;
@@ -78,6 +82,13 @@ final long id;
 volatile int minHistory = 0;
 volatile int maxHistory = 10;
 
+// Adaptive history, see STMHistory. Readers record the deepest old version they read in readDepth,
+// the rest is only changed by a transaction holding the write lock
+volatile int readDepth;
+int lastReadDepth;
+int historyCommits;
+STMHistory.Retained retained;
+
 static final AtomicLong ids = new AtomicLong();
 
 public Ref(Object initVal) {
@@ -92,16 +103,32 @@ public Ref(Object initVal,IPersistentMap meta) {
 	tvals = new TVal(initVal, 0);
 }
 
+static final Object UNBOUND = new Object();
+
 //the latest val
 
 // ok out of transaction
 Object currentVal(){
+	Object val = latestVal(UNBOUND);
+	if(val == UNBOUND)
+		throw new IllegalStateException(this.toString() + " is unbound.");
+	return val;
+}
+
+// The latest val or notFound if unbound, the lock is only taken if a commit of the ref is in progress
+Object latestVal(Object notFound){
+	long s = stamp;
+	if((s & 1) == 0)
+		{
+		TVal t = tvals;
+		Object val = t == null ? notFound : t.val;
+		if(stamp == s)
+			return val;
+		}
 	try
 		{
 		lock.readLock().lock();
-		if(tvals != null)
-			return tvals.val;
-		throw new IllegalStateException(this.toString() + " is unbound.");
+		return tvals == null ? notFound : tvals.val;
 		}
 	finally
 		{
@@ -109,6 +136,15 @@ Object currentVal(){
 		}
 }
 
+// Mark the start and end of changes to tvals, must hold the write lock
+void beginWrite(){
+	stamp++;
+}
+
+void endWrite(){
+	stamp++;
+}
+
 //*
 
 public Object deref(){
@@ -166,6 +202,10 @@ public Object commute(IFn fn, ISeq args) {
 	return LockingTransaction.getEx().doCommute(this, fn, args);
 }
 
+public void commuteLazy(IFn fn, ISeq args) {
+	LockingTransaction.getEx().doCommuteLazy(this, fn, args);
+}
+
 public Object alter(IFn fn, ISeq args) {
 	LockingTransaction t = LockingTransaction.getEx();
 	return t.doSet(this, fn.applyTo(RT.cons(t.doGet(this), args)));
@@ -195,8 +235,11 @@ public void trimHistory(){
 		lock.writeLock().lock();
 		if(tvals != null)
 			{
+			beginWrite();
+			STMHistory.trimmed(this);
 			tvals.next = tvals;
 			tvals.prior = tvals;
+			endWrite();
 			}
 		}
 	finally
@@ -218,15 +261,7 @@ public int getHistoryCount(){
 }
 
 int histCount(){
-	if(tvals == null)
-		return 0;
-	else
-		{
-		int count = 0;
-		for(TVal tv = tvals.next;tv != tvals;tv = tv.next)
-			count++;
-		return count;
-		}
+	return STMHistory.count(this);
 }
 
 final public IFn fn(){
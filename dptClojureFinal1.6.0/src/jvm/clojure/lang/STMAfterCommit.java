@@ -0,0 +1,176 @@
+// dpt1010f15
+package clojure.lang;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background dispatcher of the work done after a commit, used by transactions run with :after-commit :background
+ *
+ * Such a transaction hands its watch notifications, wakeups of transactions blocked by retry and after-commit
+ * listeners to a single queue instead of running them before dosync returns. The queue is drained by one task
+ * at a time on the agent send-off pool, like the actions of an agent, so the work of one commit runs in the
+ * order it did inline and the commits run one after another. The work is queued while the written refs are
+ * still write locked, so transactions writing the same refs have their work run in commit order
+ */
+public final class STMAfterCommit {
+    // Commits run by a task before it leaves the executor to other tasks
+    private static final int BATCH = 64;
+
+    private static final ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+    // Set while a task draining the queue is scheduled, the queue is never left non empty without one
+    private static final AtomicBoolean scheduled = new AtomicBoolean();
+    private static final AtomicLong queued = new AtomicLong();
+    private static final AtomicLong completed = new AtomicLong();
+    private static final AtomicLong errors = new AtomicLong();
+    private static volatile Thread drainer;
+
+    private STMAfterCommit() {
+    }
+
+    /**
+     * The work left by a commit, copied from the transaction as it reuses its own lists
+     */
+    static final class Commit implements Runnable {
+        final LockingTransaction.Notify[] notify;
+        final STMBlockingBehavior[] changed;
+        final ArrayList<EventFn> listeners;
+
+        Commit(LockingTransaction.Notify[] notify, STMBlockingBehavior[] changed, ArrayList<EventFn> listeners) {
+            this.notify = notify;
+            this.changed = changed;
+            this.listeners = listeners;
+        }
+
+        public void run() {
+            try {
+                runWork();
+            } finally {
+                completed.incrementAndGet();
+            }
+        }
+
+        private void runWork() {
+            for (LockingTransaction.Notify n : this.notify) {
+                try {
+                    n.ref.notifyWatches(n.oldval, n.newval);
+                } catch (Throwable e) {
+                    failed(e);
+                }
+            }
+            for (STMBlockingBehavior blockingBehavior : this.changed) {
+                blockingBehavior.handleChanged();
+            }
+            if (this.listeners != null) {
+                HashMap<Keyword, ArrayList<EventFn>> events = new HashMap<Keyword, ArrayList<EventFn>>();
+                events.put(LockingTransaction.AFTERCOMMITKEYWORD, this.listeners);
+                try {
+                    EventManager.runEvents(LockingTransaction.AFTERCOMMITKEYWORD, events, null);
+                } catch (Throwable e) {
+                    failed(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reports an exception thrown by a watch or a listener to the uncaught exception handler of the dispatching
+     * thread, as there is no caller left to throw it to
+     */
+    private static void failed(Throwable e) {
+        errors.incrementAndGet();
+        Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+    }
+
+    /**
+     * Queues the work of a commit to run after the work of every commit queued before it, it runs once schedule
+     * is called. Called while the refs of the commit are locked, so it does nothing that can fail
+     *
+     * @param commit The work of the commit
+     */
+    static void submit(Commit commit) {
+        queued.incrementAndGet();
+        pending.offer(commit);
+    }
+
+    private static void enqueue(Runnable work) {
+        pending.offer(work);
+        schedule();
+    }
+
+    /**
+     * Makes sure a task is draining the queue, called after submit once the refs of the commit are unlocked
+     */
+    static void schedule() {
+        if ( ! pending.isEmpty() && scheduled.compareAndSet(false, true)) {
+            try {
+                Agent.soloExecutor.execute(new Runnable() {
+                    public void run() {
+                        drain();
+                    }
+                });
+            } catch (RuntimeException e) {
+                scheduled.set(false);
+                throw e;
+            }
+        }
+    }
+
+    private static void drain() {
+        drainer = Thread.currentThread();
+        try {
+            Runnable work;
+            for (int i = 0; i < BATCH && (work = pending.poll()) != null; i++) {
+                work.run();
+            }
+        } finally {
+            drainer = null;
+            scheduled.set(false);
+            // Work offered after the last poll saw the task still scheduled
+            if ( ! pending.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * Waits until the work of every transaction committed before the call has run
+     *
+     * @param timeoutMs The maximum time to wait in milliseconds, or a negative number to wait without a limit
+     *
+     * @return Whether the work ran before the timeout
+     */
+    public static boolean await(long timeoutMs) throws InterruptedException {
+        if (Thread.currentThread() == drainer) {
+            throw new IllegalStateException("Can't await after-commit work from after-commit work");
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        enqueue(new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        if (timeoutMs < 0) {
+            done.await();
+            return true;
+        }
+        return done.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the after-commit work as a map of the number of commits that :queued and :completed their work and
+     * the watches and listeners that threw :errors
+     */
+    public static IPersistentMap snapshot() {
+        return RT.map(
+            Keyword.intern("queued"), queued.get(),
+            Keyword.intern("completed"), completed.get(),
+            Keyword.intern("errors"), errors.get());
+    }
+}
@@ -2,15 +2,34 @@
 package clojure.lang;
 
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
 
 /**
  * Abstract class for blocking behaviors in relation with retry functionality
+ *
+ * Committing transactions only check if the refs changed and signal the blocking behavior, the predicate of
+ * retry is evaluated by the waiting side so the cost of predicates is not added to the commits of other threads
  */
 abstract class STMBlockingBehavior {
     protected Set<Ref> refSet;
-    protected CountDownLatch cdl;
     protected long blockPoint;
+    /**
+     * Number of times committers signalled a change of the refs, guarded by this
+     */
+    private long signals = 0;
+    /**
+     * Time of the last signal, used for the wakeup latency statistics
+     */
+    private volatile long signalled = 0;
+    /**
+     * Run by committers on every signal, used by asynchronous transactions instead of a waiting thread
+     */
+    private volatile Runnable continuation;
+    /**
+     * The last result of the predicate and the version of the refs it was evaluated for, guarded by predicateLock
+     */
+    private final Object predicateLock = new Object();
+    private long predicateVersion = -1;
+    private boolean predicateResult;
 
     /**
      *  Default constructor
@@ -20,29 +39,111 @@ abstract class STMBlockingBehavior {
     STMBlockingBehavior(Set<Ref> refSet, long blockPoint) {
         this.refSet = refSet;
         this.blockPoint = blockPoint;
-        this.cdl = new CountDownLatch(1);
     }
 
     /**
-     * Awaits the count down of this blocking behaviors CountDownLatch
+     * Awaits until the blocking behavior should unblock, the predicate is evaluated on the waiting thread
+     * each time a committer signalled a change
      */
     void await() throws InterruptedException {
-        if ( ! shouldUnblock()) {
-            this.cdl.await();
+        boolean waited = false;
+        while (true) {
+            long seen;
+            synchronized (this) {
+                seen = this.signals;
+            }
+            if (shouldUnblock()) {
+                if (waited) {
+                    recordWakeup();
+                }
+                return;
+            }
+            waited = true;
+            synchronized (this) {
+                while (this.signals == seen) {
+                    this.wait();
+                }
+            }
         }
     }
 
     /**
-     * Unblock the blocking behavior based on handleChanged
+     * Runs continuation on the committing thread each time the refs change, and once right away to handle
+     * changes made before it was set
+     *
+     * @param continuation The continuation, must not block as it might run on a committing thread
+     */
+    void onChanged(Runnable continuation) {
+        this.continuation = continuation;
+        continuation.run();
+    }
+
+    /**
+     * Signals the waiting side if the refs changed, called by committing transactions
      */
     void handleChanged() {
-        if (shouldUnblock()) {
-            this.cdl.countDown();
+        if (refsChanged()) {
+            if (STMStats.ENABLED) {
+                this.signalled = System.nanoTime();
+            }
+            synchronized (this) {
+                this.signals++;
+                this.notifyAll();
+            }
+            Runnable r = this.continuation;
+            if (r != null) {
+                r.run();
+            }
+        }
+    }
+
+    /**
+     * Records the time from the last signal until the blocking behavior unblocked
+     */
+    void recordWakeup() {
+        long signalled = this.signalled;
+        if (STMStats.ENABLED && signalled != 0) {
+            STMStats.wakeupNanos.record(System.nanoTime() - signalled);
         }
     }
 
     /**
-     * Return a boolean if the blocking behavior should unblock
+     * Return a boolean if the blocking behavior should unblock, might evaluate the predicate
+     */
+    boolean shouldUnblock() {
+        return refsChanged() && predicate();
+    }
+
+    /**
+     * Return a boolean if the refs changed enough since the block point to unblock, must be cheap
+     */
+    abstract protected boolean refsChanged();
+
+    /**
+     * Return a boolean if the predicate of the blocking behavior holds, true without a predicate
+     */
+    protected boolean predicate() {
+        return true;
+    }
+
+    /**
+     * Evaluates the predicate fn, the result is reused until one of the refs gets a new version
+     *
+     * @param fn   The predicate
+     * @param args The arguments of the predicate
      */
-    abstract protected boolean shouldUnblock();
+    protected boolean cachedPredicate(IFn fn, ISeq args) {
+        synchronized (this.predicateLock) {
+            // Points only grow, so their sum changes whenever a ref gets a new version
+            long version = 0;
+            for (Ref ref : this.refSet) {
+                version += ref.tvals.point;
+            }
+            if (version != this.predicateVersion) {
+                this.predicateResult = (Boolean) fn.applyTo(args);
+                this.predicateVersion = version;
+            }
+            return this.predicateResult;
+        }
+    }
 }
@@ -13,17 +13,14 @@ class STMBlockingBehaviorAll extends STMBlockingBehavior {
     }
 
     /**
-     * Awaits the count down of this blocking behaviors CountDownLatch
+     * Return a boolean if all of the refs changed since the block point
      */
-    protected boolean shouldUnblock() {
-        boolean unblock = true;
-
+    protected boolean refsChanged() {
         for (Ref ref : this.refSet) {
-            if (ref.tvals.point < this.blockPoint) {
-                unblock = false;
-                break;
+            if (ref.tvals.point <= this.blockPoint) {
+                return false;
             }
         }
-        return unblock;
+        return true;
     }
 }
@@ -13,9 +13,9 @@ class STMBlockingBehaviorAny extends STMBlockingBehavior {
     }
 
     /**
-     * Return a boolean if the blocking behavior should unblock
+     * Return a boolean if any of the refs changed since the block point
      */
-    protected boolean shouldUnblock() {
+    protected boolean refsChanged() {
         for (Ref ref : this.refSet) {
             if (ref.tvals.point > this.blockPoint) {
                 return true;
@@ -25,17 +25,21 @@ class STMBlockingBehaviorFnAll extends STMBlockingBehavior {
    }
 
     /**
-     * Awaits the count down of this blocking behaviors CountDownLatch
+     * Return a boolean if all of the refs changed since the block point
      */
-    protected boolean shouldUnblock() {
-        boolean unblock = true;
-
+    protected boolean refsChanged() {
         for (Ref ref : this.refSet) {
-            if (ref.tvals.point < this.blockPoint) {
-                unblock = false;
-                break;
+            if (ref.tvals.point <= this.blockPoint) {
+                return false;
             }
         }
-        return unblock && (Boolean) this.fn.applyTo(this.args);
+        return true;
+    }
+
+    /**
+     * Return the result of the function, evaluated again only when the refs got new versions
+     */
+    protected boolean predicate() {
+        return cachedPredicate(this.fn, this.args);
     }
 }
@@ -25,14 +25,21 @@ class STMBlockingBehaviorFnAny extends STMBlockingBehavior {
     }
 
     /**
-     * Return a boolean if the blocking behavior should unblock
+     * Return a boolean if any of the refs changed since the block point
      */
-    protected boolean shouldUnblock() {
+    protected boolean refsChanged() {
         for (Ref ref : this.refSet) {
             if (ref.tvals.point > this.blockPoint) {
-                break;
+                return true;
             }
         }
-        return (Boolean) this.fn.applyTo(this.args);
+        return false;
+    }
+
+    /**
+     * Return the result of the function, evaluated again only when the refs got new versions
+     */
+    protected boolean predicate() {
+        return cachedPredicate(this.fn, this.args);
     }
 }
@@ -0,0 +1,39 @@
+// dpt1010f15
+package clojure.lang;
+
+/**
+ * Global version clock giving the read and commit points of transactions, the points are stored in Ref.TVal
+ *
+ * The clock is selected with the clojure.stm.clock system property when LockingTransaction is loaded,
+ * "counter" (the default) or "gv4"
+ */
+abstract class STMClock {
+    /**
+     * Returns the read point for a new attempt, every version committed with a point at or below it is visible
+     */
+    abstract long readPoint();
+
+    /**
+     * Returns the point to commit at, must only be called while holding the write locks of all refs to be written
+     */
+    abstract long commitPoint();
+
+    /**
+     * Returns the current point of the clock without advancing it
+     */
+    abstract long current();
+
+    /**
+     * Creates the clock with the given name
+     *
+     * @param name Either "counter" or "gv4"
+     */
+    static STMClock create(String name) {
+        if ("counter".equals(name)) {
+            return new STMClockCounter();
+        } else if ("gv4".equals(name)) {
+            return new STMClockShared();
+        }
+        throw new IllegalArgumentException("Unknown STM clock \"" + name + "\", must be either counter or gv4");
+    }
+}
@@ -0,0 +1,23 @@
+// dpt1010f15
+package clojure.lang;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Clock consuming a point for every attempt and every writing commit, gives unique read points
+ */
+class STMClockCounter extends STMClock {
+    private final AtomicLong lastPoint = new AtomicLong();
+
+    long readPoint() {
+        return lastPoint.incrementAndGet();
+    }
+
+    long commitPoint() {
+        return lastPoint.incrementAndGet();
+    }
+
+    long current() {
+        return lastPoint.get();
+    }
+}
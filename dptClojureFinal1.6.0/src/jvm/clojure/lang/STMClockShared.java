@@ -0,0 +1,39 @@
+// dpt1010f15
+package clojure.lang;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * GV4 style clock, attempts only read the clock and a commit that loses the race to increment it adopts the
+ * point of the winner instead of incrementing again, so the clock is only written once per group of concurrent
+ * commits and never by readers
+ *
+ * Sharing a commit point is safe as committers acquire the write locks of all refs they write before reading
+ * the clock, so a transaction reading the shared point either blocks on those locks or sees all the writes
+ */
+class STMClockShared extends STMClock {
+    private static final AtomicLongFieldUpdater<STMClockShared> updater =
+        AtomicLongFieldUpdater.newUpdater(STMClockShared.class, "point");
+
+    // Padding around point to keep it on its own cache line
+    long p0, p1, p2, p3, p4, p5, p6;
+    private volatile long point;
+    long q0, q1, q2, q3, q4, q5, q6;
+
+    long readPoint() {
+        return point;
+    }
+
+    long commitPoint() {
+        long current = point;
+        if (updater.compareAndSet(this, current, current + 1)) {
+            return current + 1;
+        }
+        // Another transaction incremented the clock after we locked our refs, so its point can be shared
+        return point;
+    }
+
+    long current() {
+        return point;
+    }
+}
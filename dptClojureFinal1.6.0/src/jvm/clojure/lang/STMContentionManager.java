@@ -0,0 +1,28 @@
+// dpt1010f15
+package clojure.lang;
+
+/**
+ * Policy deciding how a transaction resolves a write conflict with another running transaction
+ *
+ * A contention manager can be set globally with LockingTransaction.setContentionManager or for a single
+ * transaction with the :contention-manager option of dosync-with
+ */
+public interface STMContentionManager {
+    /**
+     * Decides whether the transaction self should try to abort the transaction other, which owns a ref self wants
+     *
+     * @param self  The transaction requesting the ref
+     * @param other The running transaction currently owning the ref
+     *
+     * @return True if self should try to abort other, false if self should back off and retry
+     */
+    boolean shouldBarge(LockingTransaction.Info self, LockingTransaction.Info other);
+
+    /**
+     * Waits before the transaction self is retried after losing a conflict against other
+     *
+     * @param self  The transaction that lost the conflict, it is already stopped
+     * @param other The transaction owning the ref self wanted
+     */
+    void backoff(LockingTransaction.Info self, LockingTransaction.Info other);
+}
@@ -0,0 +1,65 @@
+// dpt1010f15
+package clojure.lang;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Contention manager that never aborts other transactions, a transaction losing a conflict sleeps for a random
+ * time bounded by an exponentially growing limit based on the number of attempts
+ */
+public class STMContentionManagerBackoff implements STMContentionManager {
+    /**
+     * The default smallest and largest bound on the backoff time
+     */
+    public static final long DEFAULT_MIN_NANOS = 10 * 1000;
+    public static final long DEFAULT_MAX_NANOS = TimeUnit.MILLISECONDS.toNanos(LockingTransaction.LOCK_WAIT_MSECS);
+
+    final long minNanos;
+    final long maxNanos;
+
+    public STMContentionManagerBackoff() {
+        this(DEFAULT_MIN_NANOS, DEFAULT_MAX_NANOS);
+    }
+
+    /**
+     * @param minNanos The bound on the backoff time for the first attempt
+     * @param maxNanos The largest bound on the backoff time
+     */
+    public STMContentionManagerBackoff(long minNanos, long maxNanos) {
+        if (minNanos <= 0 || maxNanos < minNanos) {
+            throw new IllegalArgumentException("Backoff bounds must satisfy 0 < minNanos <= maxNanos");
+        }
+        this.minNanos = minNanos;
+        this.maxNanos = maxNanos;
+    }
+
+    public boolean shouldBarge(LockingTransaction.Info self, LockingTransaction.Info other) {
+        return false;
+    }
+
+    public void backoff(LockingTransaction.Info self, LockingTransaction.Info other) {
+        LockSupport.parkNanos(jitter(bound(self.getAttempt())));
+    }
+
+    /**
+     * Returns the backoff bound for the given attempt, doubling from minNanos until maxNanos
+     */
+    long bound(int attempt) {
+        if (attempt >= 62 || (minNanos << attempt) >>> attempt != minNanos) {
+            return maxNanos;
+        }
+        return Math.min(maxNanos, minNanos << attempt);
+    }
+
+    /**
+     * Returns a pseudo random number in [0, bound), avoids a shared Random as it would be a contention point itself
+     */
+    static long jitter(long bound) {
+        long x = System.nanoTime() ^ (Thread.currentThread().getId() * 0x9E3779B97F4A7C15L);
+        x ^= x << 13;
+        x ^= x >>> 7;
+        x ^= x << 17;
+        return (x >>> 1) % bound;
+    }
+}
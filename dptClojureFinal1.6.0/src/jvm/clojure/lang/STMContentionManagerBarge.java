@@ -0,0 +1,24 @@
+// dpt1010f15
+package clojure.lang;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The default contention manager, an older transaction barges a younger one when it has run for
+ * BARGE_WAIT_NANOS, a transaction losing a conflict waits up to LOCK_WAIT_MSECS for the other to stop
+ */
+public class STMContentionManagerBarge implements STMContentionManager {
+
+    public boolean shouldBarge(LockingTransaction.Info self, LockingTransaction.Info other) {
+        return System.nanoTime() - self.getStartTime() > LockingTransaction.BARGE_WAIT_NANOS
+            && self.olderThan(other);
+    }
+
+    public void backoff(LockingTransaction.Info self, LockingTransaction.Info other) {
+        try {
+            other.awaitStop(LockingTransaction.LOCK_WAIT_MSECS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            // Ignore, the transaction retries anyway
+        }
+    }
+}
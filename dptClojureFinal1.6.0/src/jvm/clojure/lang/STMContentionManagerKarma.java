@@ -0,0 +1,22 @@
+// dpt1010f15
+package clojure.lang;
+
+/**
+ * Polka contention manager, a transaction aborts another when its karma, the number of refs it has opened
+ * across all attempts, plus the number of attempts exceeds the karma of the other transaction, otherwise it
+ * backs off exponentially
+ */
+public class STMContentionManagerKarma extends STMContentionManagerBackoff {
+
+    public STMContentionManagerKarma() {
+        super();
+    }
+
+    public STMContentionManagerKarma(long minNanos, long maxNanos) {
+        super(minNanos, maxNanos);
+    }
+
+    public boolean shouldBarge(LockingTransaction.Info self, LockingTransaction.Info other) {
+        return self.getKarma() + self.getAttempt() > other.getKarma();
+    }
+}
@@ -0,0 +1,24 @@
+// dpt1010f15
+package clojure.lang;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Greedy contention manager, the oldest transaction always aborts younger ones without waiting, and a younger
+ * transaction waits up to LOCK_WAIT_MSECS for the older one to stop before retrying, so an older transaction
+ * blocked for long, by I/O or while waiting to be woken, does not park the younger ones for as long
+ */
+public class STMContentionManagerTimestamp implements STMContentionManager {
+
+    public boolean shouldBarge(LockingTransaction.Info self, LockingTransaction.Info other) {
+        return self.olderThan(other);
+    }
+
+    public void backoff(LockingTransaction.Info self, LockingTransaction.Info other) {
+        try {
+            other.awaitStop(LockingTransaction.LOCK_WAIT_MSECS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            // Ignore, the transaction retries anyway
+        }
+    }
+}
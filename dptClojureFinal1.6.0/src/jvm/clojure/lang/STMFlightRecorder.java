@@ -0,0 +1,105 @@
+// dpt1010f15
+package clojure.lang;
+
+/**
+ * Emits the flight recorder events of the STM when enabled with -Dclojure.stm.jfr=true
+ *
+ * The events are defined by STMJfr, which refers to jdk.jfr and is compiled apart from the runtime when the JDK
+ * has the flight recorder, see the jfr source set of the build. It is loaded by name, so the runtime builds and
+ * runs on JVMs without jdk.jfr and the events are not emitted when STMJfr is missing or cannot run.
+ *
+ * Callers check ENABLED first, it is a constant so the checks are removed by the JIT unless the flight recorder
+ * is enabled. Otherwise an event costs a check of whether its type is recorded. Duration events are begun by a
+ * call returning an opaque event, which is null when not recorded
+ */
+final class STMFlightRecorder {
+    /**
+     * The events emitted, implemented by STMJfr
+     */
+    interface Events {
+        Object beginTransaction();
+
+        void endTransaction(Object event, long startPoint, long readPoint, int attempt, String outcome);
+
+        void conflict(long startPoint, int attempt, long refId, String kind);
+
+        void barge(long startPoint, int attempt, long refId, long otherStartPoint, boolean success);
+
+        Object beginBlockAndBail();
+
+        void endBlockAndBail(Object event, long startPoint, int attempt, long refId, long otherStartPoint);
+
+        Object beginLockWait();
+
+        void endLockWait(Object event, long startPoint, int attempt, long refId, boolean acquired);
+
+        Object beginRetry(long startPoint, int attempt, int refs, boolean all);
+
+        void endRetry(Object event);
+    }
+
+    private static final Events events = load();
+    static final boolean ENABLED = events != null;
+
+    private STMFlightRecorder() {
+    }
+
+    private static Events load() {
+        if (!"true".equals(System.getProperty("clojure.stm.jfr"))) {
+            return null;
+        }
+        try {
+            return (Events) Class.forName("clojure.lang.STMJfr").newInstance();
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    static Object beginTransaction() {
+        return events.beginTransaction();
+    }
+
+    static void endTransaction(Object event, long startPoint, long readPoint, int attempt, String outcome) {
+        if (event != null) {
+            events.endTransaction(event, startPoint, readPoint, attempt, outcome);
+        }
+    }
+
+    static void conflict(long startPoint, int attempt, Ref ref, String kind) {
+        events.conflict(startPoint, attempt, ref.id, kind);
+    }
+
+    static void barge(long startPoint, int attempt, Ref ref, LockingTransaction.Info other, boolean success) {
+        events.barge(startPoint, attempt, ref.id, other.startPoint, success);
+    }
+
+    static Object beginBlockAndBail() {
+        return events.beginBlockAndBail();
+    }
+
+    static void endBlockAndBail(Object event, long startPoint, int attempt, Ref ref, LockingTransaction.Info other) {
+        if (event != null) {
+            events.endBlockAndBail(event, startPoint, attempt, ref.id, other.startPoint);
+        }
+    }
+
+    static Object beginLockWait() {
+        return events.beginLockWait();
+    }
+
+    static void endLockWait(Object event, long startPoint, int attempt, Ref ref, boolean acquired) {
+        if (event != null) {
+            events.endLockWait(event, startPoint, attempt, ref.id, acquired);
+        }
+    }
+
+    static Object beginRetry(long startPoint, int attempt, int refs, boolean all) {
+        return events.beginRetry(startPoint, attempt, refs, all);
+    }
+
+    static void endRetry(Object event) {
+        if (event != null) {
+            events.endRetry(event);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+// dpt1010f15
+package clojure.lang;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Future of an asynchronous transaction started by dosync-async
+ *
+ * Each run of the transaction is a task on the executor. When the transaction blocks with retry
+ * the task ends and the blocking behavior submits the transaction again once the refs change,
+ * so a blocked transaction does not hold a thread
+ *
+ * The runtime builds for Java 6, which has no CompletableFuture, so the future implements Future and takes
+ * completion callbacks with whenComplete instead
+ */
+public class STMFuture implements IDeref, IBlockingDeref, IPending, Future<Object>, Runnable {
+    /**
+     * Returned by a run of the transaction that blocked and is now waiting for its blocking behavior
+     */
+    static final Object PARKED = new Object();
+
+    private final Callable<?> fn;
+    private final IPersistentMap options;
+    private final Executor executor;
+    /**
+     * Thread bindings of the thread starting the transaction, conveyed to every run
+     */
+    private final Object frame;
+
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private final AtomicBoolean completed = new AtomicBoolean();
+    private volatile Object value;
+    private volatile Throwable error;
+    private ArrayList<IFn> callbacks = new ArrayList<IFn>();
+
+    /**
+     * The blocking behavior the transaction is waiting for, null while it is not blocked
+     */
+    private final AtomicReference<STMBlockingBehavior> parked = new AtomicReference<STMBlockingBehavior>();
+
+    STMFuture(Callable<?> fn, IPersistentMap options, Executor executor) {
+        this.fn = fn;
+        this.options = options;
+        this.executor = executor;
+        this.frame = Var.cloneThreadBindingFrame();
+    }
+
+    /**
+     * Submits a run of the transaction to the executor
+     */
+    void submit() {
+        try {
+            this.executor.execute(this);
+        } catch (Throwable t) {
+            complete(null, t);
+        }
+    }
+
+    /**
+     * Runs the transaction on the current thread until it commits, fails or blocks
+     */
+    public void run() {
+        if (isDone()) {
+            return;
+        }
+        Object prevFrame = Var.getThreadBindingFrame();
+        Var.resetThreadBindingFrame(this.frame);
+        try {
+            Object ret = LockingTransaction.runAsyncAttempt(this.fn, this.options, this);
+            if (ret != PARKED) {
+                complete(ret, null);
+            }
+        } catch (Throwable t) {
+            complete(null, t);
+        } finally {
+            Var.resetThreadBindingFrame(prevFrame);
+        }
+    }
+
+    /**
+     * Called by the transaction when it blocks, the transaction is submitted again when the blocking behavior unblocks
+     *
+     * @param blockingBehavior The registered blocking behavior of the transaction
+     * @return PARKED
+     */
+    Object park(final STMBlockingBehavior blockingBehavior) {
+        this.parked.set(blockingBehavior);
+        // Cancelled before the blocking behavior could be seen by cancel
+        if (isDone() && this.parked.compareAndSet(blockingBehavior, null)) {
+            STMWaiterIndex.unregister(blockingBehavior);
+            return PARKED;
+        }
+        final AtomicBoolean checking = new AtomicBoolean();
+        // Evaluates the predicate of the blocking behavior on the executor instead of the committing thread
+        final Runnable check = new Runnable() {
+            public void run() {
+                checking.set(false);
+                try {
+                    // Cancel might have taken the blocking behavior already
+                    if (blockingBehavior.shouldUnblock()
+                            && STMFuture.this.parked.compareAndSet(blockingBehavior, null)) {
+                        STMWaiterIndex.unregister(blockingBehavior);
+                        blockingBehavior.recordWakeup();
+                        STMFuture.this.run();
+                    }
+                } catch (Throwable t) {
+                    // The predicate failed, the transaction fails with it
+                    if (STMFuture.this.parked.compareAndSet(blockingBehavior, null)) {
+                        STMWaiterIndex.unregister(blockingBehavior);
+                    }
+                    complete(null, t);
+                }
+            }
+        };
+        // At most one check is queued, a change signalled while it runs queues another
+        blockingBehavior.onChanged(new Runnable() {
+            public void run() {
+                if (checking.compareAndSet(false, true)) {
+                    try {
+                        STMFuture.this.executor.execute(check);
+                    } catch (Throwable t) {
+                        complete(null, t);
+                    }
+                }
+            }
+        });
+        return PARKED;
+    }
+
+    /**
+     * Completes the future once, later completions are ignored
+     */
+    private boolean complete(Object value, Throwable error) {
+        if (!this.completed.compareAndSet(false, true)) {
+            return false;
+        }
+        this.value = value;
+        this.error = error;
+        this.latch.countDown();
+        ArrayList<IFn> run;
+        synchronized (this) {
+            run = this.callbacks;
+            this.callbacks = null;
+        }
+        for (IFn callback : run) {
+            callback.invoke(value, error);
+        }
+        return true;
+    }
+
+    /**
+     * Calls callback with the value and exception of the transaction once it completes, on the thread completing it
+     * or right away if it has completed, the value is nil if the transaction failed and the exception nil if it
+     * committed
+     *
+     * @param callback The function of value and exception
+     * @return This future
+     */
+    public STMFuture whenComplete(IFn callback) {
+        synchronized (this) {
+            if (this.callbacks != null) {
+                this.callbacks.add(callback);
+                return this;
+            }
+        }
+        callback.invoke(this.value, this.error);
+        return this;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!complete(null, new CancellationException())) {
+            return false;
+        }
+        // A blocked transaction is removed from the waiters, a running one finishes its run but the result is ignored
+        STMBlockingBehavior blockingBehavior = this.parked.getAndSet(null);
+        if (blockingBehavior != null) {
+            STMWaiterIndex.unregister(blockingBehavior);
+        }
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return this.error instanceof CancellationException;
+    }
+
+    public boolean isDone() {
+        return this.latch.getCount() == 0;
+    }
+
+    public boolean isRealized() {
+        return isDone();
+    }
+
+    public Object get() throws InterruptedException, ExecutionException {
+        this.latch.await();
+        return result();
+    }
+
+    public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!this.latch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private Object result() throws ExecutionException {
+        if (this.error instanceof CancellationException) {
+            throw (CancellationException) this.error;
+        }
+        if (this.error != null) {
+            throw new ExecutionException(this.error);
+        }
+        return this.value;
+    }
+
+    public Object deref() {
+        try {
+            return get();
+        } catch (Exception e) {
+            throw Util.sneakyThrow(e);
+        }
+    }
+
+    public Object deref(long ms, Object timeoutValue) {
+        try {
+            return get(ms, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return timeoutValue;
+        } catch (Exception e) {
+            throw Util.sneakyThrow(e);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+// dpt1010f15
+package clojure.lang;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adaptive history of refs, decides when a commit adds, reuses or drops an old version of a ref
+ *
+ * A ref gains a version when a read fault shows a reader needed an older one, as before, but only while the
+ * global budget of old versions is not used up. Readers record how deep into the history they read, and a
+ * version is dropped once no reader has read that deep or faulted for a whole window of commits of the ref,
+ * so the history shrinks back when the readers needing it are gone but not while they are still there. The
+ * budget counts versions rather than bytes, as the values of refs share most of their structure, it is set
+ * with -Dclojure.stm.history.budget and the window with -Dclojure.stm.history.window
+ *
+ * Snapshot transactions pin their read point, no version that is the latest at a pinned read point is reused
+ * or dropped until it is unpinned, whatever the budget and max history, so they never fault
+ */
+public final class STMHistory {
+    private static final int WINDOW = Integer.getInteger("clojure.stm.history.window", 64);
+    private static volatile long budget = Long.getLong("clojure.stm.history.budget", 100000);
+
+    // Old versions held by all refs, refs that are collected are subtracted when their Retained is enqueued
+    private static final AtomicLong versions = new AtomicLong();
+    private static final ReferenceQueue<Ref> collected = new ReferenceQueue<Ref>();
+    private static final Set<Retained> tracked = Collections.newSetFromMap(new ConcurrentHashMap<Retained, Boolean>());
+
+    // Read points of the running snapshot transactions
+    private static final Set<Pin> pins = Collections.newSetFromMap(new ConcurrentHashMap<Pin, Boolean>());
+    private static final AtomicInteger pinCount = new AtomicInteger();
+
+    private STMHistory() {
+    }
+
+    /**
+     * The number of old versions of a ref, kept apart from the ref so it can still be subtracted from the total
+     * once the ref is collected. Only changed while holding the write lock of the ref
+     */
+    static final class Retained extends WeakReference<Ref> {
+        volatile int count = 0;
+
+        Retained(Ref ref) {
+            super(ref, collected);
+        }
+    }
+
+    /**
+     * A pinned read point, reused by every snapshot transaction of a thread
+     */
+    static final class Pin {
+        volatile long point;
+    }
+
+    /**
+     * Pins a read point and returns it, commits with a commit point after the returned point keep the versions
+     * it needs until unpin is called
+     *
+     * @param pin   The pin to register
+     * @param clock The clock to take the read point from
+     */
+    static long pin(Pin pin, STMClock clock) {
+        // A commit that sees the pin before it holds the read point keeps the versions of an earlier point,
+        // and a commit that missed the pin took its commit point before the read point is taken below
+        pin.point = clock.current();
+        pinCount.incrementAndGet();
+        pins.add(pin);
+        long point = clock.current();
+        pin.point = point;
+        return point;
+    }
+
+    static void unpin(Pin pin) {
+        pins.remove(pin);
+        pinCount.decrementAndGet();
+    }
+
+    /**
+     * Returns the oldest pinned read point, or Long.MAX_VALUE if none is pinned. Must be called after taking
+     * the commit point
+     */
+    static long oldestPin() {
+        if (pinCount.get() == 0) {
+            return Long.MAX_VALUE;
+        }
+        long oldest = Long.MAX_VALUE;
+        for (Pin pin : pins) {
+            oldest = Math.min(oldest, pin.point);
+        }
+        return oldest;
+    }
+
+    /**
+     * Returns the number of old versions of ref
+     */
+    static int count(Ref ref) {
+        Retained retained = ref.retained;
+        return retained == null ? 0 : retained.count;
+    }
+
+    /**
+     * Sets the latest value of ref at a commit, must hold the write lock of ref
+     *
+     * @param ref    The ref written
+     * @param val    The new value
+     * @param point  The commit point
+     * @param pinned The oldest pinned read point
+     */
+    static void commit(Ref ref, Object val, long point, long pinned) {
+        if (ref.tvals == null) {
+            ref.tvals = new Ref.TVal(val, point);
+            return;
+        }
+        int count = count(ref);
+        if (ref.faults.get() > 0) {
+            ref.faults.set(0);
+            // A faulting reader needed a version older than all of them
+            ref.readDepth = count + 1;
+        }
+        if (++ref.historyCommits >= WINDOW) {
+            ref.historyCommits = 0;
+            ref.lastReadDepth = ref.readDepth;
+            ref.readDepth = 0;
+        }
+        int needed = Math.max(ref.readDepth, ref.lastReadDepth);
+        // The oldest version is needed by a pinned read point before the version following it
+        Ref.TVal oldest = ref.tvals.next;
+        long following = oldest == ref.tvals ? point : oldest.next.point;
+        if (count < ref.minHistory || pinned < following
+                || (needed > count && count < ref.maxHistory && versions.get() < budget)) {
+            ref.tvals = new Ref.TVal(val, point, ref.tvals);
+            add(ref, 1);
+            return;
+        }
+        // Reuse the oldest version, its value and commit point are set before it becomes the latest
+        oldest.val = val;
+        oldest.point = point;
+        ref.tvals = oldest;
+        // Drop the version that is now the oldest if no reader needs it or the limits were lowered
+        Ref.TVal dropped = oldest.next;
+        if (count > ref.minHistory && pinned >= dropped.next.point
+                && (needed < count || count > ref.maxHistory || versions.get() > budget)) {
+            oldest.next = dropped.next;
+            dropped.next.prior = oldest;
+            add(ref, -1);
+        }
+    }
+
+    /**
+     * Records that ref dropped all its old versions, must hold the write lock of ref
+     */
+    static void trimmed(Ref ref) {
+        int count = count(ref);
+        if (count > 0) {
+            add(ref, -count);
+        }
+    }
+
+    private static void add(Ref ref, int n) {
+        Retained retained = ref.retained;
+        if (retained == null) {
+            expunge();
+            retained = new Retained(ref);
+            tracked.add(retained);
+            ref.retained = retained;
+        }
+        retained.count += n;
+        versions.addAndGet(n);
+    }
+
+    /**
+     * Subtracts the versions of collected refs from the total
+     */
+    private static void expunge() {
+        Retained retained;
+        while ((retained = (Retained) collected.poll()) != null) {
+            if (tracked.remove(retained)) {
+                versions.addAndGet(-retained.count);
+            }
+        }
+    }
+
+    /**
+     * Sets the maximum number of old versions held by all refs together, refs with more history than needed
+     * drop a version each time they are written until the total is within the budget
+     */
+    public static void setBudget(long versions) {
+        if (versions < 0) {
+            throw new IllegalArgumentException("The history budget must not be negative");
+        }
+        budget = versions;
+    }
+
+    /**
+     * Returns the history as a map of the :versions held by all refs, the :budget and the number of :refs
+     * holding a history
+     */
+    public static IPersistentMap snapshot() {
+        expunge();
+        int refs = 0;
+        for (Retained retained : tracked) {
+            if (retained.count > 0) {
+                refs++;
+            }
+        }
+        return RT.map(
+            Keyword.intern("versions"), versions.get(),
+            Keyword.intern("budget"), budget,
+            Keyword.intern("refs"), refs);
+    }
+}
@@ -0,0 +1,226 @@
+// dpt1010f15
+package clojure.lang;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sampling contention profiler of the STM, attributes retries, read faults and lock waits to refs and to the
+ * call sites of dosync, started and read through clojure.dpt/start-stm-profiler and clojure.dpt/stm-profile
+ *
+ * One in every sampleInterval transactions of a thread is profiled. Events of a profiled transaction are added
+ * to its ref right away, but they are only added to its call site when the transaction ends, so the stack is
+ * walked at most once per profiled transaction and only if it had an event. Refs are kept by id, so profiling
+ * never keeps a ref alive. The profiler can be started at startup with -Dclojure.stm.profile=sampleInterval
+ */
+public final class STMProfiler {
+    // Counts of a profile, the retries are indexed by the STMStats abort causes
+    static final int FAULTS = 6;
+    static final int LOCK_WAITS = 7;
+    static final int LOCK_WAIT_NANOS = 8;
+    static final int COUNTS = 9;
+
+    private static final Keyword NAME = Keyword.intern("name");
+
+    static volatile boolean enabled = false;
+    private static volatile int sampleInterval = 1;
+
+    private static final ConcurrentHashMap<Long, Profile> refs = new ConcurrentHashMap<Long, Profile>();
+    private static final ConcurrentHashMap<String, Profile> sites = new ConcurrentHashMap<String, Profile>();
+
+    // Transactions left until the next profiled transaction of the thread
+    private static final ThreadLocal<int[]> countdown = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    static {
+        Integer interval = Integer.getInteger("clojure.stm.profile");
+        if (interval != null) {
+            start(interval);
+        }
+    }
+
+    private STMProfiler() {
+    }
+
+    /**
+     * Profile of a ref or a call site
+     */
+    static final class Profile {
+        final Object key;
+        final Object name;
+        final AtomicLongArray counts = new AtomicLongArray(COUNTS);
+
+        Profile(Object key, Object name) {
+            this.key = key;
+            this.name = name;
+        }
+    }
+
+    /**
+     * Starts profiling one in every sampleInterval transactions, the profile is kept until reset
+     *
+     * @param interval The number of transactions per profiled transaction, 1 profiles every transaction
+     */
+    public static void start(int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("The sample interval must be positive");
+        }
+        sampleInterval = interval;
+        enabled = true;
+    }
+
+    /**
+     * Stops profiling, transactions already being profiled finish their profile
+     */
+    public static void stop() {
+        enabled = false;
+    }
+
+    public static boolean isRunning() {
+        return enabled;
+    }
+
+    /**
+     * Removes all profiled refs and call sites
+     */
+    public static void reset() {
+        refs.clear();
+        sites.clear();
+    }
+
+    /**
+     * Returns whether the transaction starting on the current thread is profiled
+     */
+    static boolean sample() {
+        int[] left = countdown.get();
+        if (--left[0] > 0) {
+            return false;
+        }
+        left[0] = sampleInterval;
+        return true;
+    }
+
+    private static Profile refProfile(Ref ref) {
+        Long id = ref.id;
+        Profile profile = refs.get(id);
+        if (profile == null) {
+            IPersistentMap meta = ref.meta();
+            Object name = meta == null ? null : meta.valAt(NAME);
+            Profile created = new Profile(id, name);
+            profile = refs.putIfAbsent(id, created);
+            if (profile == null) {
+                profile = created;
+            }
+        }
+        return profile;
+    }
+
+    static void retry(Ref ref, int cause) {
+        refProfile(ref).counts.incrementAndGet(cause);
+    }
+
+    static void fault(Ref ref) {
+        refProfile(ref).counts.incrementAndGet(FAULTS);
+    }
+
+    static void lockWait(Ref ref, long nanos) {
+        AtomicLongArray counts = refProfile(ref).counts;
+        counts.incrementAndGet(LOCK_WAITS);
+        counts.addAndGet(LOCK_WAIT_NANOS, nanos);
+    }
+
+    /**
+     * Adds the counts of a profiled transaction to its call site, must be called on the thread running fn
+     *
+     * @param fn     The body of the transaction
+     * @param counts The counts of the transaction
+     */
+    static void site(Callable<?> fn, long[] counts) {
+        String site = callSite(fn);
+        Profile profile = sites.get(site);
+        if (profile == null) {
+            Profile created = new Profile(site, null);
+            profile = sites.putIfAbsent(site, created);
+            if (profile == null) {
+                profile = created;
+            }
+        }
+        for (int i = 0; i < COUNTS; i++) {
+            if (counts[i] != 0) {
+                profile.counts.addAndGet(i, counts[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns the first frame calling into the STM that is not part of Clojure itself, or the body of the
+     * transaction if there is none, as an asynchronous transaction runs on a thread of its executor
+     */
+    private static String callSite(Callable<?> fn) {
+        StackTraceElement[] stack = new Throwable().getStackTrace();
+        String stm = LockingTransaction.class.getName();
+        int i = 0;
+        while (i < stack.length && !stack[i].getClassName().equals(stm)) {
+            i++;
+        }
+        while (i < stack.length && stack[i].getClassName().equals(stm)) {
+            i++;
+        }
+        for (; i < stack.length; i++) {
+            String name = stack[i].getClassName();
+            if (!name.startsWith("clojure.lang.") && !name.startsWith("clojure.core$")
+                    && !name.startsWith("clojure.dpt$") && !name.startsWith("java.")
+                    && !name.startsWith("sun.")) {
+                return Compiler.demunge(name) + " (" + stack[i].getFileName() + ":" + stack[i].getLineNumber() + ")";
+            }
+        }
+        return Compiler.demunge(fn.getClass().getName());
+    }
+
+    /**
+     * Returns the profile as a map of :running, :sample-interval, :refs and :sites, the refs and sites are
+     * vectors of maps of their :retries by cause and in total, :faults, :lock-waits and :lock-wait-ns, a ref
+     * is identified by :id and the :name in its metadata and a call site by :site
+     */
+    public static IPersistentMap snapshot() {
+        return RT.map(
+            Keyword.intern("running"), enabled,
+            Keyword.intern("sample-interval"), sampleInterval,
+            Keyword.intern("refs"), toVector(refs, Keyword.intern("id")),
+            Keyword.intern("sites"), toVector(sites, Keyword.intern("site")));
+    }
+
+    private static IPersistentVector toVector(ConcurrentHashMap<?, Profile> profiles, Keyword keyName) {
+        IPersistentVector v = PersistentVector.EMPTY;
+        for (Map.Entry<?, Profile> e : profiles.entrySet()) {
+            Profile profile = e.getValue();
+            IPersistentMap causes = PersistentArrayMap.EMPTY;
+            long total = 0;
+            for (int cause = 0; cause < FAULTS; cause++) {
+                long n = profile.counts.get(cause);
+                if (n > 0) {
+                    causes = causes.assoc(Keyword.intern(STMStats.causeName(cause)), n);
+                    total += n;
+                }
+            }
+            IPersistentMap m = RT.map(
+                keyName, profile.key,
+                Keyword.intern("retries"), total,
+                Keyword.intern("causes"), causes,
+                Keyword.intern("faults"), profile.counts.get(FAULTS),
+                Keyword.intern("lock-waits"), profile.counts.get(LOCK_WAITS),
+                Keyword.intern("lock-wait-ns"), profile.counts.get(LOCK_WAIT_NANOS));
+            if (profile.name != null) {
+                m = m.assoc(NAME, profile.name);
+            }
+            v = v.cons(m);
+        }
+        return v;
+    }
+}
@@ -0,0 +1,168 @@
+// dpt1010f15
+package clojure.lang;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Open addressed hash table keyed by ref identity, holds the per attempt state of a transaction
+ *
+ * A transaction clears its tables after every attempt and reuses them, so unlike a HashMap or HashSet adding an
+ * entry does not allocate. The table is iterated by slot with capacity, keyAt and valAt, empty slots have a null
+ * key. Used as a set the values are the keys themselves
+ */
+final class STMRefTable {
+    private static final int INITIAL_CAPACITY = 16;
+    // A table grown beyond this by a large transaction is not kept when cleared
+    private static final int MAX_RETAINED_CAPACITY = 256;
+
+    private Ref[] keys = new Ref[INITIAL_CAPACITY];
+    private Object[] vals = new Object[INITIAL_CAPACITY];
+    private int size = 0;
+
+    private static int hash(Ref ref) {
+        long h = ref.id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Returns the slot of ref, or the empty slot where it would be added
+     */
+    private int slot(Ref ref) {
+        int mask = this.keys.length - 1;
+        int i = hash(ref) & mask;
+        Ref k;
+        while ((k = this.keys[i]) != null && k != ref) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    boolean containsKey(Ref ref) {
+        return this.keys[slot(ref)] != null;
+    }
+
+    /**
+     * Returns the value of ref, or null if ref is not in the table
+     */
+    Object get(Ref ref) {
+        return this.vals[slot(ref)];
+    }
+
+    void put(Ref ref, Object val) {
+        int i = slot(ref);
+        if (this.keys[i] == null) {
+            if ((this.size + 1) * 4 > this.keys.length * 3) {
+                resize(this.keys.length * 2);
+                i = slot(ref);
+            }
+            this.keys[i] = ref;
+            this.size++;
+        }
+        this.vals[i] = val;
+    }
+
+    /**
+     * Adds ref to the table used as a set, returns false if it was already there
+     */
+    boolean add(Ref ref) {
+        if (containsKey(ref)) {
+            return false;
+        }
+        put(ref, ref);
+        return true;
+    }
+
+    /**
+     * Removes ref, returns false if it was not in the table
+     */
+    boolean remove(Ref ref) {
+        int i = slot(ref);
+        if (this.keys[i] == null) {
+            return false;
+        }
+        // Move the following entries of the probe sequence back, so no lookup stops early at the emptied slot
+        int mask = this.keys.length - 1;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            Ref k = this.keys[j];
+            if (k == null) {
+                break;
+            }
+            int home = hash(k) & mask;
+            // Move k unless its home slot lies cyclically in (i, j]
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                this.keys[i] = k;
+                this.vals[i] = this.vals[j];
+                i = j;
+            }
+        }
+        this.keys[i] = null;
+        this.vals[i] = null;
+        this.size--;
+        return true;
+    }
+
+    void clear() {
+        if (this.size == 0) {
+            return;
+        }
+        if (this.keys.length > MAX_RETAINED_CAPACITY) {
+            this.keys = new Ref[INITIAL_CAPACITY];
+            this.vals = new Object[INITIAL_CAPACITY];
+        } else {
+            Arrays.fill(this.keys, null);
+            Arrays.fill(this.vals, null);
+        }
+        this.size = 0;
+    }
+
+    int capacity() {
+        return this.keys.length;
+    }
+
+    /**
+     * Returns the ref in slot i, null if the slot is empty
+     */
+    Ref keyAt(int i) {
+        return this.keys[i];
+    }
+
+    Object valAt(int i) {
+        return this.vals[i];
+    }
+
+    /**
+     * Adds all refs of the table to refs
+     */
+    void addKeysTo(Collection<Ref> refs) {
+        for (Ref k : this.keys) {
+            if (k != null) {
+                refs.add(k);
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        Ref[] oldKeys = this.keys;
+        Object[] oldVals = this.vals;
+        this.keys = new Ref[capacity];
+        this.vals = new Object[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int j = slot(oldKeys[i]);
+                this.keys[j] = oldKeys[i];
+                this.vals[j] = oldVals[i];
+            }
+        }
+    }
+}
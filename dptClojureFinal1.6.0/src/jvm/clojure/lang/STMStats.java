@@ -0,0 +1,324 @@
+// dpt1010f15
+package clojure.lang;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.ObjectName;
+
+/**
+ * Runtime statistics of the STM, published by clojure.dpt/stm-stats and as a JMX MBean
+ *
+ * Counters and histograms are striped by thread, so recording is a single uncontended atomic add on a cache
+ * line of its own, the stripes are only summed when a snapshot is taken. Like the profiler, recording is off
+ * unless enabled at startup with -Dclojure.stm.stats=true, the MBean is registered at startup with
+ * -Dclojure.stm.jmx=true, which enables recording as well. Lock timeouts are always counted for lock-timeouts
+ */
+public final class STMStats implements STMStatsMBean {
+    static final boolean ENABLED = Boolean.getBoolean("clojure.stm.stats") || Boolean.getBoolean("clojure.stm.jmx");
+
+    // Abort causes
+    static final int READ_FAULT = 0;
+    static final int WRITE_CONFLICT = 1;
+    static final int BARGED = 2;
+    static final int BLOCK_AND_BAIL = 3;
+    static final int LOCK_TIMEOUT = 4;
+    static final int USER_RETRY = 5;
+
+    private static final Keyword[] ABORT_CAUSES = {
+        Keyword.intern("read-fault"),
+        Keyword.intern("write-conflict"),
+        Keyword.intern("barged"),
+        Keyword.intern("block-and-bail"),
+        Keyword.intern("lock-timeout"),
+        Keyword.intern("user-retry")
+    };
+
+    // Number of stripes, a power of two of at least two times the processors
+    private static final int STRIPE_BITS =
+        Math.max(1, Math.min(6, 33 - Integer.numberOfLeadingZeros(Runtime.getRuntime().availableProcessors())));
+    private static final int STRIPES = 1 << STRIPE_BITS;
+    // Longs in a cache line, stripes are this far apart so threads do not share lines
+    private static final int PAD = 8;
+
+    static final Counter commits = new Counter();
+    static final Counter[] aborts = new Counter[ABORT_CAUSES.length];
+    static final Counter bargeAttempts = new Counter();
+    static final Counter bargeSuccesses = new Counter();
+    static final Counter lockTimeouts = new Counter();
+    static final Histogram attemptsPerCommit = new Histogram();
+    static final Histogram lockWaitNanos = new Histogram();
+    static final Histogram wakeupNanos = new Histogram();
+    static final Histogram listenerNanos = new Histogram();
+
+    private static final STMStats instance = new STMStats();
+    private static boolean registered = false;
+
+    static {
+        for (int i = 0; i < aborts.length; i++) {
+            aborts[i] = new Counter();
+        }
+        if (Boolean.getBoolean("clojure.stm.jmx")) {
+            registerMBean();
+        }
+    }
+
+    private STMStats() {
+    }
+
+    /**
+     * Returns the stripe of the current thread
+     */
+    private static int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> (64 - STRIPE_BITS));
+    }
+
+    /**
+     * Striped counter
+     */
+    static final class Counter {
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+        void add(long n) {
+            this.cells.getAndAdd(stripe() * PAD, n);
+        }
+
+        void increment() {
+            add(1);
+        }
+
+        long sum() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += this.cells.get(i * PAD);
+            }
+            return sum;
+        }
+
+        void reset() {
+            for (int i = 0; i < STRIPES; i++) {
+                this.cells.set(i * PAD, 0);
+            }
+        }
+    }
+
+    /**
+     * Striped histogram with a bucket per power of two, bucket b > 0 holds the values from 2^(b-1) to 2^b - 1
+     */
+    static final class Histogram {
+        private static final int BUCKETS = 64;
+        // Each stripe holds the sum followed by the buckets, rounded up to whole cache lines
+        private static final int STRIDE = (BUCKETS + 1 + PAD - 1) / PAD * PAD;
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * STRIDE);
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            int base = stripe() * STRIDE;
+            this.cells.getAndAdd(base, value);
+            this.cells.getAndIncrement(base + 1 + (64 - Long.numberOfLeadingZeros(value)));
+        }
+
+        long[] buckets() {
+            long[] buckets = new long[BUCKETS];
+            for (int i = 0; i < STRIPES; i++) {
+                for (int b = 0; b < BUCKETS; b++) {
+                    buckets[b] += this.cells.get(i * STRIDE + 1 + b);
+                }
+            }
+            return buckets;
+        }
+
+        long sum() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += this.cells.get(i * STRIDE);
+            }
+            return sum;
+        }
+
+        double mean() {
+            long count = 0;
+            for (long n : buckets()) {
+                count += n;
+            }
+            return count == 0 ? 0.0 : (double) sum() / count;
+        }
+
+        void reset() {
+            for (int i = 0; i < this.cells.length(); i++) {
+                this.cells.set(i, 0);
+            }
+        }
+
+        /**
+         * Returns the histogram as a map of :count, :sum, :mean and :buckets, a sorted map from the lowest
+         * value of each non empty bucket to its count
+         */
+        IPersistentMap toMap() {
+            long[] buckets = buckets();
+            long count = 0;
+            IPersistentMap nonEmpty = PersistentTreeMap.EMPTY;
+            for (int b = 0; b < BUCKETS; b++) {
+                if (buckets[b] > 0) {
+                    count += buckets[b];
+                    nonEmpty = nonEmpty.assoc(b == 0 ? 0L : 1L << (b - 1), buckets[b]);
+                }
+            }
+            long sum = sum();
+            return RT.map(
+                Keyword.intern("count"), count,
+                Keyword.intern("sum"), sum,
+                Keyword.intern("mean"), count == 0 ? 0.0 : (double) sum / count,
+                Keyword.intern("buckets"), nonEmpty);
+        }
+    }
+
+    /**
+     * Returns the name of an abort cause
+     */
+    static String causeName(int cause) {
+        return ABORT_CAUSES[cause].getName();
+    }
+
+    static void abort(int cause) {
+        aborts[cause].increment();
+    }
+
+    static void commit(int attempts) {
+        commits.increment();
+        attemptsPerCommit.record(attempts);
+    }
+
+    /**
+     * Returns a snapshot of all statistics as a map
+     */
+    public static IPersistentMap snapshot() {
+        IPersistentMap abortMap = PersistentArrayMap.EMPTY;
+        long total = 0;
+        for (int i = 0; i < aborts.length; i++) {
+            long n = aborts[i].sum();
+            total += n;
+            abortMap = abortMap.assoc(ABORT_CAUSES[i], n);
+        }
+        abortMap = abortMap.assoc(Keyword.intern("total"), total);
+        return RT.map(
+            Keyword.intern("commits"), commits.sum(),
+            Keyword.intern("aborts"), abortMap,
+            Keyword.intern("attempts-per-commit"), attemptsPerCommit.toMap(),
+            Keyword.intern("barges"), RT.map(
+                Keyword.intern("attempts"), bargeAttempts.sum(),
+                Keyword.intern("successes"), bargeSuccesses.sum()),
+            Keyword.intern("lock-timeouts"), lockTimeouts.sum(),
+            Keyword.intern("lock-wait-ns"), lockWaitNanos.toMap(),
+            Keyword.intern("waiters"), STMWaiterIndex.size(),
+            Keyword.intern("wakeup-latency-ns"), wakeupNanos.toMap(),
+            Keyword.intern("listener-ns"), listenerNanos.toMap());
+    }
+
+    /**
+     * Sets all counters and histograms to zero, recordings made at the same time might be partly lost
+     */
+    public static void resetAll() {
+        commits.reset();
+        for (Counter c : aborts) {
+            c.reset();
+        }
+        bargeAttempts.reset();
+        bargeSuccesses.reset();
+        lockTimeouts.reset();
+        attemptsPerCommit.reset();
+        lockWaitNanos.reset();
+        wakeupNanos.reset();
+        listenerNanos.reset();
+    }
+
+    /**
+     * Registers the statistics as the MBean clojure.lang:type=STMStats, does nothing if already registered
+     */
+    public static synchronized void registerMBean() {
+        if (registered) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(instance, new ObjectName("clojure.lang:type=STMStats"));
+            registered = true;
+        } catch (Exception e) {
+            throw Util.sneakyThrow(e);
+        }
+    }
+
+    public long getCommits() {
+        return commits.sum();
+    }
+
+    public long getAborts() {
+        long total = 0;
+        for (Counter c : aborts) {
+            total += c.sum();
+        }
+        return total;
+    }
+
+    public long getAbortsReadFault() {
+        return aborts[READ_FAULT].sum();
+    }
+
+    public long getAbortsWriteConflict() {
+        return aborts[WRITE_CONFLICT].sum();
+    }
+
+    public long getAbortsBarged() {
+        return aborts[BARGED].sum();
+    }
+
+    public long getAbortsBlockAndBail() {
+        return aborts[BLOCK_AND_BAIL].sum();
+    }
+
+    public long getAbortsLockTimeout() {
+        return aborts[LOCK_TIMEOUT].sum();
+    }
+
+    public long getAbortsUserRetry() {
+        return aborts[USER_RETRY].sum();
+    }
+
+    public double getMeanAttemptsPerCommit() {
+        return attemptsPerCommit.mean();
+    }
+
+    public long getBargeAttempts() {
+        return bargeAttempts.sum();
+    }
+
+    public long getBargeSuccesses() {
+        return bargeSuccesses.sum();
+    }
+
+    public long getLockTimeouts() {
+        return lockTimeouts.sum();
+    }
+
+    public double getMeanLockWaitNanos() {
+        return lockWaitNanos.mean();
+    }
+
+    public int getWaiters() {
+        return STMWaiterIndex.size();
+    }
+
+    public double getMeanWakeupLatencyNanos() {
+        return wakeupNanos.mean();
+    }
+
+    public double getMeanListenerNanos() {
+        return listenerNanos.mean();
+    }
+
+    public void reset() {
+        resetAll();
+    }
+}
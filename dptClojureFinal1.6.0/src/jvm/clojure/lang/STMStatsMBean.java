@@ -0,0 +1,41 @@
+// dpt1010f15
+package clojure.lang;
+
+/**
+ * JMX view of STMStats, registered as clojure.lang:type=STMStats
+ */
+public interface STMStatsMBean {
+    long getCommits();
+
+    long getAborts();
+
+    long getAbortsReadFault();
+
+    long getAbortsWriteConflict();
+
+    long getAbortsBarged();
+
+    long getAbortsBlockAndBail();
+
+    long getAbortsLockTimeout();
+
+    long getAbortsUserRetry();
+
+    double getMeanAttemptsPerCommit();
+
+    long getBargeAttempts();
+
+    long getBargeSuccesses();
+
+    long getLockTimeouts();
+
+    double getMeanLockWaitNanos();
+
+    int getWaiters();
+
+    double getMeanWakeupLatencyNanos();
+
+    double getMeanListenerNanos();
+
+    void reset();
+}
@@ -0,0 +1,96 @@
+// dpt1010f15
+package clojure.lang;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Index of blocking behaviors waiting for a ref to change, used by retry and retry-all
+ *
+ * A committing transaction only has to look up the refs it wrote to find the blocking
+ * behaviors that may unblock, instead of evaluating every blocked transaction in the JVM
+ */
+final class STMWaiterIndex {
+    /**
+     * Maps each ref to the blocking behaviors that have the ref in their refSet
+     */
+    private final static ConcurrentHashMap<Ref, Set<STMBlockingBehavior>> waiters =
+        new ConcurrentHashMap<Ref, Set<STMBlockingBehavior>>();
+
+    /**
+     * Number of blocking behaviors currently registered
+     */
+    private final static AtomicInteger count = new AtomicInteger();
+
+    private STMWaiterIndex() {
+    }
+
+    /**
+     * Registers a blocking behavior under every ref in its refSet
+     *
+     * @param blockingBehavior The blocking behavior to register
+     */
+    static void register(STMBlockingBehavior blockingBehavior) {
+        for (Ref ref : blockingBehavior.refSet) {
+            while (true) {
+                Set<STMBlockingBehavior> refWaiters = waiters.get(ref);
+                if (refWaiters == null) {
+                    Set<STMBlockingBehavior> created =
+                        Collections.newSetFromMap(new ConcurrentHashMap<STMBlockingBehavior, Boolean>());
+                    refWaiters = waiters.putIfAbsent(ref, created);
+                    if (refWaiters == null) {
+                        refWaiters = created;
+                    }
+                }
+                refWaiters.add(blockingBehavior);
+                // The set might have been removed as empty by unregister before we added to it
+                if (waiters.get(ref) == refWaiters) {
+                    break;
+                }
+                refWaiters.remove(blockingBehavior);
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Removes a blocking behavior from the index, empty sets are removed so refs can be collected
+     *
+     * @param blockingBehavior The blocking behavior to remove
+     */
+    static void unregister(STMBlockingBehavior blockingBehavior) {
+        for (Ref ref : blockingBehavior.refSet) {
+            Set<STMBlockingBehavior> refWaiters = waiters.get(ref);
+            if (refWaiters != null) {
+                refWaiters.remove(blockingBehavior);
+                if (refWaiters.isEmpty()) {
+                    waiters.remove(ref, refWaiters);
+                }
+            }
+        }
+        count.decrementAndGet();
+    }
+
+    /**
+     * Adds the blocking behaviors waiting on ref to changed, must be called after the new value of ref is set
+     *
+     * @param ref     The ref written by the committing transaction
+     * @param changed The collection to add the affected blocking behaviors to
+     */
+    static void collect(Ref ref, Collection<STMBlockingBehavior> changed) {
+        Set<STMBlockingBehavior> refWaiters = waiters.get(ref);
+        if (refWaiters != null) {
+            changed.addAll(refWaiters);
+        }
+    }
+
+    /**
+     * Returns the number of blocking behaviors currently registered
+     */
+    static int size() {
+        return count.get();
+    }
+}
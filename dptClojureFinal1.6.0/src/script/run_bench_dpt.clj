@@ -0,0 +1,10 @@
+; dpt1010f15
+(System/setProperty "java.awt.headless" "true")
+(def benchmarks '[dpt.bench.waiter-index
+                 dpt.bench.contention
+                 dpt.bench.clock-scaling
+                 dpt.bench.deref])
+(apply require benchmarks)
+(doseq [bench benchmarks]
+  ((ns-resolve bench 'run)))
+(shutdown-agents)
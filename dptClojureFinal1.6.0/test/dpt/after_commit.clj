@@ -0,0 +1,63 @@
+; dpt1010f15
+(ns dpt.after-commit
+  (:use clojure.test clojure.dpt))
+
+(deftest background-returns-before-after-commit
+  (let [gate (promise)
+        ran (promise)
+        caller (Thread/currentThread)
+        r (ref 0)]
+    (is (== 1 (dosync-with {:after-commit :background}
+                (after-commit @gate (deliver ran (Thread/currentThread)))
+                (alter r inc))))
+    (is (not (realized? ran)))
+    (deliver gate true)
+    (is (await-after-commit 5000))
+    (is (not= caller @ran))))
+
+(deftest background-watches-in-commit-order
+  (let [r (ref 0)
+        seen (atom [])
+        n 200]
+    (add-watch r :order (fn [_ _ old new] (swap! seen conj [old new])))
+    (doseq [w (doall (for [_ (range 4)]
+                       (future (dotimes [_ n]
+                                 (dosync-with {:after-commit :background} (alter r inc))))))]
+      @w)
+    (is (await-after-commit 5000))
+    (is (= (for [i (range (* 4 n))] [i (inc i)]) @seen))))
+
+(deftest background-context-and-retry
+  (let [r (ref 0)
+        context-seen (promise)
+        blocked (future (dosync (if (pos? @r) @r (retry [r]))))]
+    (dosync-with {:after-commit :background}
+      (after-commit-fn #(deliver context-seen (context)))
+      (alter r inc))
+    (is (== 1 (deref blocked 5000 0)))
+    (is (await-after-commit 5000))
+    (is (nil? @context-seen))))
+
+(deftest background-errors
+  (let [r (ref 0)
+        handler (Thread/getDefaultUncaughtExceptionHandler)
+        reported (promise)
+        errors (:errors (after-commit-stats))]
+    (add-watch r :fail (fn [& _] (throw (IllegalStateException. "watch"))))
+    (Thread/setDefaultUncaughtExceptionHandler
+      (reify Thread$UncaughtExceptionHandler
+        (uncaughtException [_ _ e] (deliver reported (class e)))))
+    (try
+      (is (== 1 (dosync-with {:after-commit :background} (alter r inc))))
+      (is (await-after-commit 5000))
+      (is (= IllegalStateException (deref reported 5000 nil)))
+      (is (== (inc errors) (:errors (after-commit-stats))))
+      (finally
+        (Thread/setDefaultUncaughtExceptionHandler handler)))))
+
+(deftest after-commit-modes
+  (with-local-vars [after false]
+    (dosync-with {:after-commit :inline}
+      (after-commit (var-set after true)))
+    (is @after))
+  (is (thrown? IllegalArgumentException (dosync-with {:after-commit :later} nil))))
@@ -0,0 +1,34 @@
+; dpt1010f15
+(ns dpt.allocation
+  (:use clojure.test clojure.dpt)
+  (:import java.lang.management.ManagementFactory))
+
+;; A transaction reuses the state of the previous transaction on its thread, so
+;; in the steady state only the body of dosync should be allocated. The bound is
+;; generous as the JIT decides what is allocated before it has compiled the STM
+
+(def ^:private mx (ManagementFactory/getThreadMXBean))
+
+(defn- measurable? []
+  (and (instance? com.sun.management.ThreadMXBean mx)
+       (.isThreadAllocatedMemorySupported ^com.sun.management.ThreadMXBean mx)))
+
+(defn- allocated []
+  (.getThreadAllocatedBytes ^com.sun.management.ThreadMXBean mx (.getId (Thread/currentThread))))
+
+(defn- bytes-per-transaction [f]
+  (dotimes [_ 100000] (f))
+  (let [start (allocated)]
+    (dotimes [_ 100000] (f))
+    (/ (double (- (allocated) start)) 100000)))
+
+(deftest steady-state-allocation
+  (when (measurable?)
+    (let [a (ref 0)
+          b (ref 0)]
+      (testing "Writes"
+        (is (> 256 (bytes-per-transaction #(dosync (ref-set a @b) (alter b inc))))))
+      (testing "Reads"
+        (is (> 256 (bytes-per-transaction #(dosync @a @b)))))
+      (testing "Commutes"
+        (is (> 256 (bytes-per-transaction #(dosync (commute a identity)))))))))
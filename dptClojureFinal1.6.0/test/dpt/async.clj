@@ -0,0 +1,63 @@
+; dpt1010f15
+(ns dpt.async
+  (:use clojure.test clojure.dpt)
+  (:import (java.util.concurrent Executors ExecutionException CancellationException TimeUnit)))
+
+(def ^:dynamic *conveyed* nil)
+
+(deftest async-value
+  (let [r (ref 1)]
+    (is (== 3 @(dosync-async (alter r + 2))))
+    (is (== 3 @r))
+    (is (= :conveyed (binding [*conveyed* :conveyed] @(dosync-async *conveyed*))))))
+
+(deftest async-exception
+  (let [f (dosync-async (throw (IllegalArgumentException. "async")))]
+    (is (thrown? ExecutionException (.get f)))
+    (is (realized? f))))
+
+(deftest async-in-transaction
+  (is (thrown? IllegalStateException
+               (dosync (dosync-async nil)))))
+
+(deftest async-blocked-without-threads
+  (let [executor (Executors/newFixedThreadPool 2)
+        gate (ref false)
+        woken (ref 0)
+        ; Far more blocked transactions than threads in the executor
+        futures (doall (for [_ (range 100)]
+                         (dosync-async-with {:executor executor}
+                           (when-not @gate
+                             (retry gate))
+                           (commute woken inc))))]
+    (Thread/sleep 100)
+    (is (not-any? realized? futures))
+    (dosync (ref-set gate true))
+    (is (every? #(deref % 10000 false) futures))
+    (is (== 100 @woken))
+    (.shutdown executor)))
+
+(deftest async-cancel-and-callback
+  (let [gate (ref false)
+        result (promise)
+        blocked (dosync-async
+                  (when-not @gate
+                    (retry gate))
+                  :unblocked)]
+    (.whenComplete blocked (fn [value exception] (deliver result exception)))
+    (is (= :timeout (deref blocked 100 :timeout)))
+    (is (.cancel blocked false))
+    (is (.isCancelled blocked))
+    (is (instance? CancellationException (deref result 1000 nil)))
+    (dosync (ref-set gate true))
+    (is (thrown? CancellationException (.get blocked)))))
+
+(deftest async-predicate
+  (let [r (ref 0)
+        f (dosync-async
+            (when (< @r 3)
+              (retry r #(>= @r 3)))
+            @r)]
+    (dotimes [_ 3]
+      (dosync (alter r inc)))
+    (is (== 3 (deref f 5000 nil)))))
@@ -0,0 +1,68 @@
+; dpt1010f15
+(ns dpt.commute
+  (:use clojure.test clojure.dpt))
+
+(deftest lazy-commute-evaluated-at-commit
+  (let [r (ref 0)
+        calls (atom 0)
+        counted-inc (fn [x] (swap! calls inc) (inc x))]
+    (is (nil? (dosync (commute-lazy r counted-inc))))
+    (is (= 1 @r))
+    (is (= 1 @calls))
+    (testing "Consecutive commutes are applied in order"
+      (dosync
+        (commute-lazy r + 10)
+        (commute-lazy r * 2)
+        (commute-lazy r counted-inc))
+      (is (= 23 @r))
+      (is (= 2 @calls)))))
+
+(deftest lazy-commute-evaluated-when-read
+  (let [r (ref [])
+        calls (atom 0)
+        counted-conj (fn [v x] (swap! calls inc) (conj v x))]
+    (is (= [1 2 3]
+           (dosync
+             (commute-lazy r counted-conj 1)
+             (commute-lazy r counted-conj 2)
+             (let [seen @r]
+               (commute r conj 3)
+               (is (= [1 2] seen))
+               @r))))
+    (is (= [1 2 3] @r))
+    (testing "Commutes read in the transaction are applied again at commit"
+      (is (= 4 @calls)))))
+
+(deftest lazy-commute-mixed
+  (let [r (ref 1)]
+    (dosync
+      (is (= 2 (commute r inc)))
+      (commute-lazy r * 10)
+      (is (= 21 (commute r inc))))
+    (is (= 21 @r))
+    (testing "Set after commute is rejected"
+      (is (thrown? IllegalStateException
+                   (dosync (commute-lazy r inc) (ref-set r 0))))
+      (is (thrown? IllegalStateException
+                   (dosync-read (commute-lazy r inc)))))))
+
+(deftest lazy-commute-in-or-else
+  (let [r (ref 0)
+        gate (ref false)]
+    (dosync
+      (commute-lazy r + 1)
+      (or-else #(do (is (= 1 @r))
+                    (commute-lazy r + 10)
+                    (if @gate :first (retry)))
+               #(do (commute-lazy r + 100) :second)))
+    (testing "The discarded alternative forgets its commute but keeps the read one"
+      (is (= 101 @r)))))
+
+(deftest lazy-commute-concurrent
+  (let [r (ref 0)
+        workers (doall (for [_ (range 4)]
+                         (future
+                           (dotimes [_ 500]
+                             (dosync (commute-lazy r inc))))))]
+    (doseq [w workers] @w)
+    (is (= 2000 @r))))
@@ -0,0 +1,64 @@
+; dpt1010f15
+(ns dpt.consistency
+  (:use clojure.test clojure.dpt))
+
+(defn- transfer-while-reading
+  "Transfers between accounts from writer threads while reader threads sum all
+  accounts in a transaction, returns the sums seen by the readers"
+  [accounts writers readers transactions]
+  (let [refs (vec (repeatedly accounts #(ref 100)))
+        sums (atom [])
+        write (fn []
+                (dotimes [_ transactions]
+                  (let [from (refs (rand-int accounts))
+                        to (refs (rand-int accounts))]
+                    (dosync
+                      (alter from - 1)
+                      (alter to + 1)))))
+        read (fn []
+               (dotimes [i transactions]
+                 (let [sum (if (even? i)
+                             (dosync (reduce + (map deref refs)))
+                             (dosync-read (reduce + (map deref refs))))]
+                   (swap! sums conj sum))))
+        threads (doall (concat (repeatedly writers #(future (write)))
+                               (repeatedly readers #(future (read)))))]
+    (dorun (map deref threads))
+    (is (== (* 100 accounts) (reduce + (map deref refs))))
+    @sums))
+
+(deftest snapshot-sums
+  (let [sums (transfer-while-reading 8 4 4 500)]
+    (is (every? #(== 800 %) sums) "A reader saw an inconsistent snapshot")))
+
+(deftest read-only-snapshot
+  (let [a (ref 1) b (ref 2)]
+    (is (== 3 (dosync-read (+ @a @b))))
+    (is (== 3 (dosync-read (+ (ensure a) @b))))
+    (is (thrown? IllegalStateException (dosync-read (alter a inc))))
+    (is (thrown? IllegalStateException (dosync-read (commute a inc))))
+    ; Nested transactions run in the read only transaction
+    (is (thrown? IllegalStateException (dosync-read (dosync (ref-set b 0)))))
+    (is (== 1 @a))
+    (is (== 2 @b))))
+
+(deftest read-only-events
+  (let [a (ref 1)]
+    (with-local-vars [committed nil after false]
+      (dosync-read
+        (on-commit (var-set committed (context)))
+        (after-commit (var-set after true))
+        @a)
+      (is (= #{} @committed))
+      (is @after))))
+
+(deftest opposite-order-writers
+  (let [refs (vec (repeatedly 8 #(ref 0)))
+        n 500
+        timeouts (lock-timeouts)
+        forward (future (dotimes [_ n] (dosync (doseq [r refs] (alter r inc)))))
+        backward (future (dotimes [_ n] (dosync (doseq [r (rseq refs)] (commute r inc)))))]
+    @forward
+    @backward
+    (is (every? #(== (* 2 n) @%) refs))
+    (is (== timeouts (lock-timeouts)))))
@@ -0,0 +1,66 @@
+; dpt1010f15
+(ns dpt.contention-manager
+  (:use clojure.test clojure.dpt dpt.dpt-test-helper))
+
+(use-fixtures :once dosync-fixture)
+
+(defn- concurrent-increments
+  "Increments a ref from a number of threads, each running its transactions
+  with the given contention manager, and returns the final value"
+  [manager threads increments]
+  (let [counter (ref 0)]
+    (dorun (pmap (fn [_]
+                   (dotimes [_ increments]
+                     (dosync-with {:contention-manager manager}
+                       (alter counter inc))))
+                 (range threads)))
+    @counter))
+
+(deftest built-in-managers
+  (doseq [type [:barge :backoff :karma :timestamp]]
+    (is (== 2000 (concurrent-increments (contention-manager type) 8 250))
+        (str type " lost updates"))))
+
+(deftest unknown-manager
+  (is (thrown? IllegalArgumentException (contention-manager :unknown))))
+
+(deftest custom-manager-backoff
+  ; dpt-alter-ref is owned by the fixture thread, so the conflict is lost
+  (let [manager (reify clojure.lang.STMContentionManager
+                  (shouldBarge [_ self other] false)
+                  (backoff [_ self other]
+                    (throw (IllegalStateException. "backed off"))))]
+    (is (thrown-with-msg? IllegalStateException #"backed off"
+                          (dosync-with {:contention-manager manager}
+                            (alter dpt-alter-ref inc))))))
+
+(deftest global-manager
+  (let [previous (clojure.lang.LockingTransaction/getContentionManager)
+        manager (contention-manager :karma)]
+    (try
+      (set-contention-manager! manager)
+      (is (identical? manager (clojure.lang.LockingTransaction/getContentionManager)))
+      (is (== 2000 (concurrent-increments nil 8 250)))
+      (finally
+        (set-contention-manager! previous)))))
+
+(deftest timestamp-backoff-is-bounded
+  (let [manager (contention-manager :timestamp)
+        r (ref 0)
+        written (promise)
+        release (promise)
+        attempts (atom 0)
+        older (future (dosync-with {:contention-manager manager}
+                        (alter r inc)
+                        (deliver written true)
+                        @release))
+        _ @written
+        younger (future (dosync-with {:contention-manager manager}
+                          (swap! attempts inc)
+                          (alter r inc)))]
+    ; The younger transaction keeps retrying while the older one holds the ref
+    (Thread/sleep 500)
+    (is (< 2 @attempts))
+    (deliver release true)
+    @older
+    (is (= 2 (deref younger 5000 :hung)))))
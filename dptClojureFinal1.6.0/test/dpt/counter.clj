@@ -0,0 +1,141 @@
+; dpt1010f15
+(ns dpt.counter
+  (:use clojure.test clojure.dpt))
+
+(deftest counter-concurrent-adds
+  (let [c (counter-ref 5)
+        workers (doall (for [i (range 4)]
+                         (future
+                           (dotimes [_ 500]
+                             (dosync
+                               (if (even? i)
+                                 (commute c inc)
+                                 (counter-add! c 2)))))))]
+    (doseq [w workers] @w)
+    (is (= 3005 @c))))
+
+(deftest counter-consistent-reads
+  (let [c (counter-ref)
+        r (ref 0)
+        running (atom true)
+        writer (future
+                 (while @running
+                   (dosync
+                     (alter r inc)
+                     (commute c inc))))
+        consistent (for [_ (range 200)]
+                     (dosync
+                       (let [a @r
+                             b @c]
+                         (and (= a b) (= b @c)))))]
+    (try
+      (is (every? true? (doall consistent)))
+      (finally
+        (reset! running false)
+        @writer))
+    (is (= @r @c))))
+
+(deftest counter-in-transaction
+  (let [c (counter-ref 10)]
+    (dosync
+      (is (= 11 (commute c inc)))
+      (is (= 14 (commute c + 1 2)))
+      (counter-add! c -4)
+      (is (= 10 (commute c - 0)))
+      (is (= 10 @c))
+      (is (= 11 (commute c inc))))
+    (is (= 11 @c))
+    (is (thrown? UnsupportedOperationException (dosync (ref-set c 0))))
+    (is (thrown? UnsupportedOperationException (dosync (alter c inc))))
+    (is (thrown? IllegalArgumentException (dosync (commute c * 2))))
+    (is (thrown? IllegalArgumentException (dosync (commute c + 1.5))))
+    (is (thrown? IllegalStateException (counter-add! c 1)))
+    (is (= 11 @c))))
+
+(deftest counter-ensure
+  (let [c (counter-ref)
+        out (ref nil)
+        ensured (promise)
+        added (promise)
+        attempts (atom 0)
+        t (future
+            (dosync
+              (swap! attempts inc)
+              (let [v (ensure c)]
+                (deliver ensured true)
+                @added
+                (ref-set out v))))]
+    @ensured
+    (dosync (commute c inc))
+    (deliver added true)
+    @t
+    (is (= 2 @attempts))
+    (is (= 1 @out))))
+
+(deftest counter-watches-and-or-else
+  (let [c (counter-ref)
+        seen (atom [])]
+    (add-watch c :w (fn [_ _ old new] (swap! seen conj [old new])))
+    (dosync
+      (counter-add! c 1)
+      (or-else #(do (counter-add! c 10) (retry))
+               #(counter-add! c 100)))
+    (is (= 101 @c))
+    (is (= [[0 101]] @seen))
+    (is (= 102 (dosync-irrevocable (commute c inc) @c)))
+    (is (= 102 @c))))
+
+(deftest counter-validator
+  (let [c (counter-ref 1 :validator #(not (neg? %)))]
+    (is (thrown? IllegalStateException (dosync (counter-add! c -5))))
+    (is (= 1 @c))
+    (dosync (commute c dec))
+    (is (= 0 @c))
+    (let [workers (doall (for [_ (range 4)]
+                           (future (dotimes [_ 50]
+                                     (try (dosync (counter-add! c 1) (counter-add! c -2))
+                                          (catch IllegalStateException _))))))]
+      (doseq [w workers] @w))
+    (is (not (neg? @c)))))
+
+(deftest counter-read-own-claim
+  (let [c (counter-ref)
+        r (ref 0 :validator (fn [_] (>= @c 0)))
+        read-on-commit (future (dosync (counter-add! c 1) (on-commit @c)) :done)
+        read-by-validator (future (dosync (counter-add! c 1) (alter r inc)) :done)]
+    (is (= :done (deref read-on-commit 5000 :hung)))
+    (is (= :done (deref read-by-validator 5000 :hung)))
+    (is (= 2 @c))))
+
+(deftest counter-retry
+  (let [c (counter-ref)
+        blocked (future (dosync (when (< @c 1) (retry c)) :woke))
+        blocked-on-reads (future (dosync (when (< @c 1) (retry)) :woke))
+        blocked-on-all (future (dosync (when (< @c 1) (retry-all [c])) :woke))]
+    (Thread/sleep 100)
+    (dosync (counter-add! c 5))
+    (is (= :woke (deref blocked 3000 :timed-out)))
+    (is (= :woke (deref blocked-on-reads 3000 :timed-out)))
+    (is (= :woke (deref blocked-on-all 3000 :timed-out)))))
+
+(deftest counter-read-while-held
+  (let [c (counter-ref)
+        held (promise)
+        release (promise)
+        timeouts (lock-timeouts)
+        holder (future (dosync-irrevocable
+                         @c
+                         (deliver held true)
+                         @release
+                         (commute c inc)))]
+    @held
+    ; A reader blocks for the held cells as long as for a write lock, then retries until the holder commits
+    (let [reader (future (dosync @c))]
+      (Thread/sleep 300)
+      (is (not (realized? reader)))
+      (is (< timeouts (lock-timeouts)))
+      (deliver release true)
+      @holder
+      ; The reader reads at the read point of its last attempt, which may be before the commit of the holder
+      (is (#{0 1} (deref reader 5000 :hung)))
+      (is (= 1 @c)))))
@@ -0,0 +1,53 @@
+; dpt1010f15
+(ns dpt.ensure
+  (:use clojure.test clojure.dpt))
+
+(defn- withdraw
+  "Takes 1 from the account if both accounts together hold more than 0, the
+  other account is ensured so no concurrent withdrawal can drive the sum below 0"
+  [options account other]
+  (dosync-with options
+    (when (pos? (+ @account (ensure other)))
+      (alter account dec))))
+
+(defn- write-skew [options]
+  (let [a (ref 50)
+        b (ref 50)
+        workers (doall (for [i (range 8)]
+                         (future
+                           (dotimes [_ 100]
+                             (if (even? i)
+                               (withdraw options a b)
+                               (withdraw options b a))))))]
+    (doseq [w workers] @w)
+    (+ @a @b)))
+
+(deftest ensure-prevents-write-skew
+  (is (= 0 (write-skew {:ensure :lock})))
+  (is (= 0 (write-skew {:ensure :optimistic}))))
+
+(deftest optimistic-ensure-does-not-block-writers
+  (let [r (ref 0)
+        out (ref nil)
+        ensured (promise)
+        written (promise)
+        attempts (atom 0)
+        reader (future
+                 (dosync-with {:ensure :optimistic}
+                   (swap! attempts inc)
+                   (let [v (ensure r)]
+                     (deliver ensured true)
+                     @written
+                     (ref-set out v))))]
+    @ensured
+    (let [writer (future (dosync (ref-set r 1)))]
+      (is (= 1 (deref writer 1000 :blocked))))
+    (deliver written true)
+    @reader
+    (testing "The ensuring transaction retries as the ref changed"
+      (is (= 2 @attempts))
+      (is (= 1 @out)))))
+
+(deftest ensure-mode
+  (is (thrown? IllegalArgumentException (dosync-with {:ensure :maybe} nil)))
+  (is (= 1 (dosync-with {:ensure :optimistic} (ensure (ref 1))))))
@@ -1,6 +1,7 @@
 ; dpt1010f15
 (ns dpt.event-manager
-  (:use clojure.test clojure.dpt dpt.dpt-test-helper))
+  (:use clojure.test clojure.dpt dpt.dpt-test-helper)
+  (:import java.util.concurrent.Executors))
 
 (use-fixtures :once dosync-fixture)
 
@@ -100,3 +101,278 @@
     (let [dismiss-key (listen-with-params :test false false #(is (== 7 (context))))]
       (future (notify :test 7))
       (dismiss :test dismiss-key :all)))
+
+(deftest listen-once-concurrent-notify
+  (let [runs (atom 0)
+        other (atom 0)
+        _ (listen-with-params :test-once false true #(swap! runs inc))
+        dismiss-key (listen-with-params :test-once false false #(swap! other inc))
+        notifiers (doall (repeatedly 8 #(future (dotimes [_ 100] (notify :test-once)))))]
+    (doseq [n notifiers] @n)
+    (dismiss :test-once dismiss-key :all)
+    (is (== 1 @runs))
+    (is (== 800 @other))))
+
+(deftest listen-while-notifying
+  (let [runs (atom 0)
+        dismiss-key (listen-with-params :test-listen false false
+                                        #(let [f (listen-with-params :test-listen false false (fn []))]
+                                           (swap! runs inc)
+                                           (dismiss :test-listen f :all)))]
+    (dotimes [_ 100] (notify :test-listen))
+    (dismiss :test-listen dismiss-key :all)
+    (is (== 100 @runs))))
+
+; Asynchronous events
+(defn- blocked-key
+  "Configures event-key on a single thread with a queue of one notify, and
+  blocks the thread with the first run of a listener until the returned gate
+  is delivered. Returns the gate and a function releasing the gate and the
+  listener"
+  [event-key options]
+  (let [gate (promise)
+        started (promise)
+        executor (Executors/newSingleThreadExecutor)]
+    (set-event-delivery! event-key (assoc options :executor executor :capacity 1))
+    (let [blocking (listen-with-params event-key false false
+                                       #(when (deliver started true) @gate))]
+      (notify-async event-key)
+      @started
+      [gate #(do (deliver gate true)
+                 (dismiss event-key blocking :all)
+                 (.shutdown executor))])))
+
+(deftest notify-async-context
+  (let [caller (Thread/currentThread)
+        seen (promise)
+        dismiss-key (listen-with-params :test-async false false
+                                        #(deliver seen [(context) (Thread/currentThread)]))]
+    (notify-async :test-async 9)
+    (let [[value thread] (deref seen 5000 nil)]
+      (is (== 9 value))
+      (is (not= caller thread)))
+    (dismiss :test-async dismiss-key :all)
+    (is (nil? (context)))))
+
+(deftest listen-async
+  (let [caller (Thread/currentThread)
+        threads (atom [])
+        done (promise)
+        async-key (listen-with :test-listen-async {:thread-local false :async true}
+                               #(do (swap! threads conj [:async (Thread/currentThread) (context)])
+                                    (deliver done true)))
+        sync-key (listen-with :test-listen-async {}
+                              #(swap! threads conj [:sync (Thread/currentThread) (context)]))]
+    (notify :test-listen-async 3)
+    (deref done 5000 nil)
+    (let [runs (into {} (map (fn [[k t c]] [k [(= t caller) c]]) @threads))]
+      (is (= [true 3] (:sync runs)))
+      (is (= [false 3] (:async runs))))
+    (dismiss :test-listen-async async-key :all)
+    (dismiss :test-listen-async sync-key :all)))
+
+(deftest notify-async-order
+  (let [seen (atom [])
+        done (promise)
+        dismiss-key (listen-with-params :test-order false false
+                                        #(do (swap! seen conj (context))
+                                             (when (== 99 (context)) (deliver done true))))]
+    (dotimes [i 100] (notify-async :test-order i))
+    (deref done 5000 nil)
+    (is (= (range 100) @seen))
+    (dismiss :test-order dismiss-key :all)))
+
+(deftest notify-async-drop
+  (let [[_ release] (blocked-key :test-drop {:overflow :drop})]
+    (dotimes [_ 5] (notify-async :test-drop))
+    (is (= {:queued 1 :dropped 4} (select-keys (event-delivery :test-drop) [:queued :dropped])))
+    (release)))
+
+(deftest notify-async-caller-runs
+  (let [[_ release] (blocked-key :test-caller-runs {:overflow :caller-runs})
+        caller (Thread/currentThread)
+        threads (atom [])
+        dismiss-key (listen-with-params :test-caller-runs false false
+                                        #(swap! threads conj (Thread/currentThread)))]
+    (notify-async :test-caller-runs)
+    (notify-async :test-caller-runs)
+    (is (= [caller] @threads))
+    (release)
+    (dismiss :test-caller-runs dismiss-key :all)))
+
+(deftest notify-async-block
+  (let [[gate release] (blocked-key :test-block {:overflow :block})
+        _ (notify-async :test-block)
+        blocked (future (notify-async :test-block) true)]
+    (is (= :blocked (deref blocked 200 :blocked)))
+    (deliver gate true)
+    (is (deref blocked 5000 false))
+    (release)))
+
+(deftest notify-async-errors
+  (let [handled (promise)
+        dismiss-key (listen-with-params :test-async-error false false #(throw (IllegalStateException. "event")))]
+    (set-event-delivery! :test-async-error {:error-handler (fn [k e] (deliver handled [k (class e)]))})
+    (notify-async :test-async-error)
+    (is (= [:test-async-error IllegalStateException] (deref handled 5000 nil)))
+    (is (== 1 (:errors (event-delivery :test-async-error))))
+    (dismiss :test-async-error dismiss-key :all)
+    (is (thrown? IllegalArgumentException (set-event-delivery! :test-async-error {:overflow :wait})))))
+
+(deftest notify-async-unhandled-errors
+  (let [handler (Thread/getDefaultUncaughtExceptionHandler)
+        reported (atom [])
+        ran (promise)
+        failing (listen-with-params :test-async-unhandled false false #(throw (IllegalStateException. "event")))
+        running (listen-with-params :test-async-unhandled false false #(deliver ran true))]
+    (Thread/setDefaultUncaughtExceptionHandler
+      (reify Thread$UncaughtExceptionHandler
+        (uncaughtException [_ _ e] (swap! reported conj (.getMessage e)))))
+    (try
+      ; Without an error handler the exception goes to the uncaught exception handler
+      (notify-async :test-async-unhandled)
+      (is (deref ran 5000 false))
+      (is (= ["event"] @reported))
+      ; A failing error handler does not stop the other listeners
+      (let [ran-again (promise)]
+        (dismiss :test-async-unhandled running :all)
+        (listen-with-params :test-async-unhandled false false #(deliver ran-again true))
+        (set-event-delivery! :test-async-unhandled {:error-handler (fn [_ _] (throw (IllegalStateException. "handler")))})
+        (notify-async :test-async-unhandled)
+        (is (deref ran-again 5000 false))
+        (is (= ["event" "handler"] @reported)))
+      (finally
+        (Thread/setDefaultUncaughtExceptionHandler handler)
+        (dismiss :test-async-unhandled failing :all)))))
+
+(deftest event-delivery-of-unconfigured-key
+  (is (= {:queued 0 :delivered 0 :dropped 0 :errors 0 :overflow :block}
+         (dissoc (event-delivery :test-never-notified) :capacity))))
+
+(deftest set-event-delivery-keeps-order
+  (let [order (atom [])
+        done (promise)
+        [gate release] (blocked-key :test-reconfigure {})
+        dismiss-key (listen-with-params :test-reconfigure false false
+                                        #(when (= 3 (count (swap! order conj (context))))
+                                           (deliver done true)))]
+    ; Notifies queued on the blocked executor run before the ones queued after the change
+    (notify-async :test-reconfigure 1)
+    (set-event-delivery! :test-reconfigure {})
+    (notify-async :test-reconfigure 2)
+    (notify-async :test-reconfigure 3)
+    (Thread/sleep 100)
+    (is (= [] @order))
+    (deliver gate true)
+    (is (deref done 5000 false))
+    (is (= [1 2 3] @order))
+    (dismiss :test-reconfigure dismiss-key :all)
+    (release)))
+
+; Batched events
+(deftest listen-batched-size
+  (let [batches (atom [])
+        done (promise)
+        dismiss-key (listen-batched :test-batched {:max-size 10 :thread-local false}
+                                    #(do (swap! batches conj (context))
+                                         (when (== 10 (count @batches)) (deliver done true))))]
+    (dotimes [i 100] (notify :test-batched i))
+    (deref done 5000 nil)
+    (is (= (partition 10 (range 100)) @batches))
+    (is (every? vector? @batches))
+    (dismiss :test-batched dismiss-key :all)))
+
+(deftest listen-batched-delay
+  (let [batch (promise)
+        dismiss-key (listen-batched :test-batched-delay {:max-delay-ms 50}
+                                    #(deliver batch (context)))]
+    (notify :test-batched-delay 1)
+    (notify-async :test-batched-delay 2)
+    (is (= [1 2] (deref batch 5000 nil)))
+    (dismiss :test-batched-delay dismiss-key :all)))
+
+(deftest listen-batched-dismiss
+  (let [batch (promise)
+        dismiss-key (listen-batched :test-batched-dismiss {:max-size 100}
+                                    #(deliver batch (context)))]
+    (dotimes [i 3] (notify :test-batched-dismiss i))
+    (is (not (realized? batch)))
+    (dismiss :test-batched-dismiss dismiss-key :all)
+    (is (= [0 1 2] (deref batch 5000 nil)))
+    (is (thrown? IllegalArgumentException (listen-batched :test-batched-dismiss {} identity)))))
+
+; Wildcard and derived events
+(deftest listen-wildcard
+  (let [seen (atom [])
+        wildcard-key (listen :test-orders/* #(swap! seen conj [:orders (context)]))
+        all-key (listen :* #(swap! seen conj [:all (context)]))]
+    (notify :test-orders/created 1)
+    (notify :test-invoices/created 2)
+    (dismiss :test-orders/* wildcard-key :all)
+    (notify :test-orders/created 3)
+    (dismiss :* all-key :all)
+    (is (= [[:orders 1] [:all 1] [:all 2] [:all 3]] @seen))))
+
+(deftest listen-derived
+  (let [seen (atom [])
+        dismiss-key (listen-with-params :test-audit/event false false #(swap! seen conj (context)))
+        audit-key (listen-with-params :test-audit/* false false #(swap! seen conj [:audit (context)]))]
+    (derive-event :test-order-paid :test-payment)
+    (derive-event :test-payment :test-audit/event)
+    (notify :test-order-paid 1)
+    (underive-event :test-payment :test-audit/event)
+    (notify :test-order-paid 2)
+    (dismiss :test-audit/event dismiss-key :all)
+    (dismiss :test-audit/* audit-key :all)
+    (is (= [1 [:audit 1]] @seen))
+    (is (thrown? IllegalArgumentException (derive-event :test-payment :test-order-paid)))
+    (underive-event :test-order-paid :test-payment)))
+
+(deftest notify-runtime-keys
+  (let [runs (atom 0)
+        dismiss-key (listen :test-runtime/* #(swap! runs inc))
+        kept (fn [] (.size ^java.util.Map (.get (doto (.getDeclaredField (Class/forName "clojure.lang.EventIndex") "keys")
+                                                  (.setAccessible true))
+                                                nil)))]
+    ; The index keeps a bounded number of keys, and resolves the others on each notify
+    (dotimes [i 5000]
+      (notify (keyword "test-runtime" (str "key-" i))))
+    (is (<= (kept) 4096))
+    (notify :test-runtime/key-4999)
+    (dismiss :test-runtime/* dismiss-key :all)
+    (is (= 5001 @runs))))
+
+(deftest listen-wildcard-once
+  (let [runs (atom 0)
+        dismiss-key (listen-with-params :test-once/* false true #(swap! runs inc))]
+    (notify :test-once/a)
+    (notify :test-once/b)
+    (is (== 1 @runs))
+    (dismiss :test-once/* dismiss-key :all)))
+
+(deftest listen-batched-blocked-dispatch
+  (let [gate (promise)
+        started (promise)
+        batches (atom [])
+        executor (Executors/newSingleThreadExecutor)
+        _ (set-event-delivery! :test-batched-block {:executor executor :capacity 1 :overflow :block})
+        dismiss-key (listen-batched :test-batched-block {:max-size 1 :thread-local false}
+                                    #(do (deliver started true) @gate (swap! batches conj (context))))
+        delayed (promise)
+        delay-key (listen-batched :test-batched-other {:max-delay-ms 20 :thread-local false}
+                                  #(deliver delayed (context)))]
+    ; The first batch runs and blocks, the second fills the queue and the third blocks its notify
+    (notify :test-batched-block 0)
+    @started
+    (notify :test-batched-block 1)
+    (let [blocked (future (notify :test-batched-block 2) true)]
+      (is (= :blocked (deref blocked 200 :blocked)))
+      ; Other notifies of the key and the windows of other listeners are not held up
+      (is (= :done (deref (future (notify :test-batched-block 3) :done) 5000 :hung)))
+      (notify :test-batched-other 9)
+      (is (= [9] (deref delayed 5000 nil)))
+      (deliver gate true)
+      (is (deref blocked 5000 false)))
+    (dismiss :test-batched-block dismiss-key :all)
+    (dismiss :test-batched-other delay-key :all)
+    (.shutdown executor)))
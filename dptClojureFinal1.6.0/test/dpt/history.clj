@@ -0,0 +1,73 @@
+; dpt1010f15
+(ns dpt.history
+  (:use clojure.test clojure.dpt))
+
+(defn- fault
+  "Makes a reader of r fault once, by writing r after the reader took its read point"
+  [r]
+  (let [started (promise)
+        written (promise)
+        attempts (atom 0)
+        other (ref 0)
+        reader (future
+                 (dosync
+                   (swap! attempts inc)
+                   @other
+                   (deliver started true)
+                   @written
+                   @r))]
+    @started
+    (dosync (alter r inc))
+    (deliver written true)
+    @reader
+    @attempts))
+
+(defn- write [r n]
+  (dotimes [_ n]
+    (dosync (alter r inc))))
+
+(deftest history-grows-and-shrinks
+  (let [r (ref 0)]
+    (is (= 2 (fault r)))
+    (write r 1)
+    (is (= 1 (ref-history-count r)))
+    (testing "The version is kept while readers need it"
+      (write r 10)
+      (is (= 1 (ref-history-count r))))
+    (testing "The version is dropped when no reader needed it for a window"
+      (write r 200)
+      (is (= 0 (ref-history-count r))))))
+
+(deftest history-budget
+  (let [budget (:budget (stm-history))
+        r (ref 0)
+        kept (ref 0 :min-history 2)]
+    (try
+      (set-stm-history-budget! 0)
+      (fault r)
+      (write r 1)
+      (is (= 0 (ref-history-count r)))
+      (testing "The min history is kept whatever the budget"
+        (write kept 5)
+        (is (= 2 (ref-history-count kept)))
+        (is (<= 2 (:versions (stm-history)))))
+      (finally
+        (set-stm-history-budget! budget)))
+    (is (thrown? IllegalArgumentException (set-stm-history-budget! -1)))))
+
+(deftest history-limits
+  (let [r (ref 0 :min-history 3)]
+    (write r 5)
+    (is (= 3 (ref-history-count r)))
+    (testing "Lowering the limits drops a version per write"
+      (ref-min-history r 1)
+      (ref-max-history r 1)
+      (write r 1)
+      (is (= 2 (ref-history-count r)))
+      (write r 5)
+      (is (= 1 (ref-history-count r))))
+    (testing "Trimming forgets the versions"
+      (let [before (:versions (stm-history))]
+        (.trimHistory r)
+        (is (= 0 (ref-history-count r)))
+        (is (<= (:versions (stm-history)) (dec before)))))))
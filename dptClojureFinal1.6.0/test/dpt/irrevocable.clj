@@ -0,0 +1,71 @@
+; dpt1010f15
+(ns dpt.irrevocable
+  (:use clojure.test clojure.dpt))
+
+(deftest irrevocable-runs-once
+  (let [a (ref 0)
+        b (ref 0)
+        runs (atom 0)
+        writers (doall (for [_ (range 4)]
+                         (future
+                           (dotimes [_ 200]
+                             (dosync
+                               (alter a inc)
+                               (alter b dec))))))]
+    (dotimes [_ 20]
+      (dosync-irrevocable
+        (swap! runs inc)
+        (let [sum (+ @a @b)]
+          (Thread/sleep 1)
+          (alter a + 10)
+          (alter b - 10)
+          (is (== 0 sum)))))
+    (doseq [w writers] @w)
+    (is (== 20 @runs))
+    (is (== 1000 @a))
+    (is (== -1000 @b))))
+
+(deftest irrevocable-commute-and-ensure
+  (let [a (ref 0)
+        b (ref 1)]
+    (is (== 2 (dosync-irrevocable
+                (ensure b)
+                (commute a + @b)
+                (commute a inc))))
+    (is (== 2 @a))))
+
+(deftest irrevocable-retry
+  (is (thrown? IllegalStateException
+               (dosync-irrevocable
+                 (retry)))))
+
+(deftest irrevocable-nested
+  (is (thrown? IllegalStateException
+               (dosync
+                 (dosync-irrevocable nil))))
+  (is (== 1 (dosync-irrevocable (dosync-irrevocable 1)))))
+
+(deftest irrevocable-read-only
+  (is (thrown? IllegalArgumentException
+               (dosync-with {:read-only true :irrevocable true} nil))))
+
+(deftest irrevocable-escalation
+  (let [r (ref 0)
+        owned (java.util.concurrent.CountDownLatch. 1)
+        release (java.util.concurrent.CountDownLatch. 1)
+        attempts (atom 0)
+        ; Holds the ref in a running transaction until released
+        owner (future
+                (dosync
+                  (alter r inc)
+                  (.countDown owned)
+                  (.await release 10 java.util.concurrent.TimeUnit/SECONDS)))]
+    (.await owned)
+    ; Conflicts once with the owner, then takes the ref from it
+    (dosync-with {:irrevocable-after 1}
+      (swap! attempts inc)
+      (alter r + 10))
+    (.countDown release)
+    @owner
+    (is (== 11 @r))
+    (is (== 2 @attempts))))
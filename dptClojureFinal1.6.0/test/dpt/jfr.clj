@@ -0,0 +1,52 @@
+; dpt1010f15
+(ns dpt.jfr
+  (:use clojure.test clojure.dpt))
+
+; The events are only emitted with -Dclojure.stm.jfr=true, set by the test target of the build
+(def jfr-available?
+  (try
+    (Class/forName "jdk.jfr.Recording")
+    (when-not (= "true" (System/getProperty "clojure.stm.jfr"))
+      (throw (IllegalStateException. "The flight recorder is not enabled")))
+    (Class/forName "clojure.lang.STMJfr")
+    true
+    (catch Throwable _ false)))
+
+; The JFR classes are resolved by reflection, so the namespace loads on JVMs without them
+(defn- record-events
+  "Runs f while recording the given STM events and returns the names of the recorded events"
+  [names f]
+  (let [recording (clojure.lang.Reflector/invokeConstructor
+                    (Class/forName "jdk.jfr.Recording") (object-array 0))
+        file (java.io.File/createTempFile "stm" ".jfr")]
+    (try
+      (doseq [name names]
+        (.enable recording name))
+      (.start recording)
+      (f)
+      (.stop recording)
+      (.dump recording (.toPath file))
+      (set (map #(.getName (.getEventType %))
+                (clojure.lang.Reflector/invokeStaticMethod
+                  "jdk.jfr.consumer.RecordingFile" "readAllEvents" (object-array [(.toPath file)]))))
+      (finally
+        (.close recording)
+        (.delete file)))))
+
+(deftest jfr-transaction-and-conflict
+  (when jfr-available?
+    (let [r (ref 0)
+          attempts (atom 0)
+          recorded (record-events
+                     ["clojure.stm.Transaction" "clojure.stm.Conflict"]
+                     (fn []
+                       (dosync
+                         (when (= 1 (swap! attempts inc))
+                           @r
+                           ; Commits a newer value from another thread so the write conflicts
+                           @(future (dosync (alter r inc))))
+                         (alter r inc))))]
+      (is (< 1 @attempts))
+      (is (= 2 @r))
+      (is (contains? recorded "clojure.stm.Transaction"))
+      (is (contains? recorded "clojure.stm.Conflict")))))
@@ -0,0 +1,53 @@
+; dpt1010f15
+(ns dpt.profiler
+  (:use clojure.test clojure.dpt))
+
+(defn- conflicting-transfer
+  "Runs a transaction that retries once because another thread writes r after it was read"
+  [r]
+  (let [attempts (atom 0)]
+    (dosync
+      (when (= 1 (swap! attempts inc))
+        @r
+        @(future (dosync (alter r inc))))
+      (alter r inc))
+    @attempts))
+
+(deftest profiler-attribution
+  (reset-stm-profile!)
+  (start-stm-profiler 1)
+  (try
+    (let [r (ref 0 :meta {:name :hot})
+          attempts (conflicting-transfer r)
+          {:keys [refs sites]} (stm-profile)
+          hot (first (filter #(= :hot (:name %)) refs))]
+      (is (< 1 attempts))
+      (is (some? hot))
+      (is (pos? (:retries hot)))
+      (is (some #(.contains ^String (:site %) "conflicting-transfer") sites))
+      (is (some #(.contains ^String (:site %) "profiler.clj") sites)))
+    (finally
+      (stop-stm-profiler)
+      (reset-stm-profile!))))
+
+(deftest profiler-stopped
+  (reset-stm-profile!)
+  (let [r (ref 0)]
+    (conflicting-transfer r)
+    (is (empty? (:refs (stm-profile))))
+    (is (not (:running (stm-profile))))))
+
+(deftest profiler-ranking
+  (reset-stm-profile!)
+  (start-stm-profiler 1)
+  (try
+    (let [cold (ref 0 :meta {:name :cold})
+          hot (ref 0 :meta {:name :hot})]
+      (conflicting-transfer cold)
+      (dotimes [_ 3]
+        (conflicting-transfer hot))
+      (is (= [:hot :cold] (map :name (:refs (stm-profile)))))
+      (is (= 1 (count (:refs (stm-profile 1))))))
+    (finally
+      (stop-stm-profiler)
+      (reset-stm-profile!))))
@@ -0,0 +1,63 @@
+; dpt1010f15
+(ns dpt.snapshot
+  (:use clojure.test clojure.dpt))
+
+(defn- transfer-while
+  "Moves 1 between random accounts until running is false, returns the number of transfers"
+  [accounts running]
+  (future
+    (loop [n 0]
+      (if @running
+        (let [from (rand-int (count accounts))
+              to (rand-int (count accounts))]
+          (dosync
+            (alter (accounts from) dec)
+            (alter (accounts to) inc))
+          (recur (inc n)))
+        n))))
+
+(deftest snapshot-never-faults
+  (let [accounts (vec (repeatedly 20 #(ref 100 :max-history 0)))
+        budget (:budget (stm-history))
+        running (atom true)
+        attempts (atom 0)]
+    (try
+      (set-stm-history-budget! 0)
+      (let [writer (transfer-while accounts running)
+            total (dosync-snapshot
+                    (swap! attempts inc)
+                    (reduce + (for [a accounts]
+                                (do (Thread/sleep 5) ; Leave the writer time to commit between reads
+                                    @a))))]
+        (reset! running false)
+        (is (pos? @writer))
+        (is (= 2000 total))
+        (is (= 1 @attempts)))
+      (finally
+        (reset! running false)
+        (set-stm-history-budget! budget)))))
+
+(deftest snapshot-releases-history
+  (let [r (ref 0)
+        read (promise)
+        written (promise)
+        reader (future
+                 (dosync-snapshot
+                   (deliver read @r)
+                   @written
+                   @r))]
+    @read
+    (dotimes [_ 5]
+      (dosync (alter r inc)))
+    (deliver written true)
+    (is (= 0 @reader))
+    (is (<= 5 (ref-history-count r)))
+    (testing "The versions kept for the snapshot are dropped again"
+      (dotimes [_ 200]
+        (dosync (alter r inc)))
+      (is (= 0 (ref-history-count r))))))
+
+(deftest snapshot-is-read-only
+  (let [r (ref 0)]
+    (is (thrown? IllegalStateException (dosync-snapshot (ref-set r 1))))
+    (is (= 1 (dosync-with {:snapshot true} (inc @r))))))
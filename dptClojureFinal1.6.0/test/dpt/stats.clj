@@ -0,0 +1,55 @@
+; dpt1010f15
+(ns dpt.stats
+  (:use clojure.test clojure.dpt)
+  (:import java.lang.management.ManagementFactory
+           javax.management.ObjectName))
+
+; Statistics are recorded with -Dclojure.stm.stats=true, set by the test target of the build. Other namespaces
+; might run transactions at the same time, so only increases are checked
+(deftest stats-commits
+  (let [r (ref 0)
+        before (stm-stats)]
+    (dotimes [_ 10]
+      (dosync (alter r inc)))
+    (let [after (stm-stats)]
+      (is (<= (+ 10 (:commits before)) (:commits after)))
+      (is (<= (+ 10 (get-in before [:attempts-per-commit :count]))
+              (get-in after [:attempts-per-commit :count])))
+      (is (<= 1.0 (get-in after [:attempts-per-commit :mean]))))))
+
+(deftest stats-user-retry
+  (let [r (ref 0)
+        before (get-in (stm-stats) [:aborts :user-retry])
+        waiter (future
+                 (dosync
+                   (when (zero? @r)
+                     (retry r))))]
+    (Thread/sleep 100) ; Test sync with time, the waiter must block before the commit
+    (is (<= 1 (:waiters (stm-stats))))
+    (dosync (alter r inc))
+    @waiter
+    (let [after (stm-stats)]
+      (is (< before (get-in after [:aborts :user-retry])))
+      (is (pos? (get-in after [:wakeup-latency-ns :count]))))))
+
+(deftest stats-listeners
+  (let [before (get-in (stm-stats) [:listener-ns :count])]
+    (dosync
+      (stm-listen :stats #(identity 0))
+      (stm-notify :stats))
+    (is (< before (get-in (stm-stats) [:listener-ns :count])))))
+
+(deftest stats-histogram-buckets
+  (let [buckets (get-in (stm-stats) [:attempts-per-commit :buckets])]
+    (is (sorted? buckets))
+    (is (every? #(or (zero? %) (== % (Long/highestOneBit %))) (keys buckets)))))
+
+(deftest stats-mbean
+  (register-stm-stats-mbean)
+  ; Registering twice is allowed
+  (register-stm-stats-mbean)
+  (let [server (ManagementFactory/getPlatformMBeanServer)
+        name (ObjectName. "clojure.lang:type=STMStats")]
+    (dosync (ref-set (ref 0) 1))
+    (is (pos? (.getAttribute server name "Commits")))
+    (is (number? (.getAttribute server name "MeanAttemptsPerCommit")))))
@@ -44,6 +44,22 @@
         (retry retry-ref #(== @retry-ref 2)))
       (is (== @retry-ref 2)))))
 
+(deftest retry-by-commute
+  (let [retry-ref (ref 0) unrelated-ref (ref 0)]
+    ; Start unlock thread
+    (future
+      (Thread/sleep 1000) ; Test sync with time, deadlocks if missed
+      ; Writing an unrelated ref should not unlock
+      (dosync
+        (alter unrelated-ref inc))
+      (dosync
+        (commute retry-ref inc)))
+    ; Blocks main thread
+    (dosync
+      (when (== 0 @retry-ref)
+        (retry retry-ref)))
+    (is (== @retry-ref 1))))
+
 ; Retry-All
 (deftest retry-all-by-gets
   (let [retry-ref-one (ref 0) retry-ref-two (ref 0)]
@@ -105,6 +121,23 @@
         (retry [retry-ref-one retry-ref-two] #(== @retry-ref-one 2)))
       (alter retry-ref-one inc))))
 
+(deftest retry-predicate-on-waiter
+  (let [retry-ref (ref 0)
+        threads (atom #{})
+        waiter (future
+                 (dosync
+                   (when (< @retry-ref 3)
+                     (retry retry-ref #(do (swap! threads conj (Thread/currentThread))
+                                           (== @retry-ref 3))))
+                   :unblocked))]
+    (Thread/sleep 100) ; Test sync with time, the waiter must block before the commits
+    (dotimes [_ 3]
+      (dosync
+        (alter retry-ref inc)))
+    (is (= :unblocked (deref waiter 5000 :timeout)))
+    ; The committing thread never evaluates the predicate
+    (is (not (contains? @threads (Thread/currentThread))))))
+
 ; Or-Else
 (deftest or-else-test
   (let [or-else-ref (ref 0)]
@@ -115,6 +148,51 @@
         #(ref-set or-else-ref 7)))
     (is (== @or-else-ref 5))))
 
+(deftest or-else-rollback
+  (let [set-ref (ref 0)
+        commute-ref (ref 0)
+        block-ref (ref 0)]
+    (is (= :second
+           (dosync
+             (ref-set set-ref 1)
+             (or-else
+               #(do (ref-set set-ref 2)
+                    (commute commute-ref inc)
+                    (on-commit (ref-set set-ref 3))
+                    (retry block-ref))
+               #(do (is (== 1 @set-ref))
+                    (is (== 0 @commute-ref))
+                    :second)))))
+    (is (== 1 @set-ref))
+    (is (== 0 @commute-ref))))
+
+(deftest or-else-nested
+  (let [or-else-ref (ref 0)]
+    (dosync
+      (or-else
+        #(do (alter or-else-ref inc)
+             (or-else
+               (fn [] (alter or-else-ref + 10) (retry or-else-ref))
+               (fn [] (alter or-else-ref + 100)))
+             (retry or-else-ref))
+        #(alter or-else-ref + 1000)))
+    (is (== 1000 @or-else-ref))))
+
+(deftest or-else-all-blocked
+  (let [one-ref (ref 0)
+        two-ref (ref 0)]
+    ; Start unlock thread
+    (future
+      (Thread/sleep 1000) ; Test sync with time, deadlocks if missed
+      (dosync
+        (alter two-ref inc)))
+    ; Blocks main thread until one of the refs the alternatives blocked on changes
+    (is (= :two
+           (dosync
+             (or-else
+               #(if (== 0 @one-ref) (retry one-ref) :one)
+               #(if (== 0 @two-ref) (retry two-ref) :two)))))))
+
 ; Terminate
 (deftest terminate-test
   (let [terminate-ref (ref 0)]
@@ -124,3 +202,16 @@
     (dosync
       (ref-set terminate-ref 5))
     (is (== @terminate-ref 5))))
+
+(deftest retry-limit-leaves-no-blocking
+  (let [r (ref 0)
+        running (atom true)
+        writer (future (while @running (dosync (alter r inc))))
+        result (future
+                 (let [failed (try (dosync (retry [r])) false
+                                   (catch RuntimeException _ true))]
+                   (reset! running false)
+                   @writer
+                   [failed (dosync 42)]))]
+    (is (= [true 42] (deref result 30000 :hung)))
+    (reset! running false)))